@@ -0,0 +1,243 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/*Small JMH-style harness for the server hot paths (see BoardBenchmarks).
+Responsible for the following:
+    - Picking benchmarks by name and running every combination of the
+      notes / pins / threads parameters
+    - Warmup and measurement iterations, each one against a freshly set up board
+    - Running each combination in its own JVM (fork) so one benchmark's JIT
+      profile doesn't leak into the next
+    - Printing one JMH-like result line per combination
+Two modes, like JMH's:
+    thrpt  every thread calls the operation in a loop for the iteration time, score is ops/s
+    ss     the operations of one batch are split over the threads and timed once,
+           score is us/op (used for mutations, which would otherwise change the board
+           they are measuring)
+The repo has no build tool, so this is plain javac + java instead of a JMH module:
+    cd Benchmarks
+    javac -sourcepath ../ServerConfig -d classes *.java
+    java -cp classes BenchmarkRunner [regex] [-p notes=1000,100000] [-p pins=0,2] [-t 1,4]
+                                     [-wi 3] [-i 5] [-r 1] [-f 1] [-l]
+*/
+
+public class BenchmarkRunner {
+
+    private static int warmups = 3;
+    private static int iterations = 5;
+    private static double seconds = 1; // per throughput iteration
+    private static int forks = 1; // 0 runs in this JVM
+    private static List<Integer> threadCounts = List.of(1);
+    private static Map<String, List<Integer>> params = new LinkedHashMap<>();
+
+    // results end up here so the JIT can't drop the calls that produced them
+    public static volatile long sink;
+
+    // ends a throughput iteration
+    private static volatile boolean stop;
+
+    public static void main(String[] args) throws Exception {
+        params.put("notes", List.of(1000, 100000));
+        params.put("pins", List.of(0, 2));
+
+        String filter = ".*";
+        boolean child = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-r": seconds = Double.parseDouble(args[++i]); break;
+                case "-f": forks = Integer.parseInt(args[++i]); break;
+                case "-t": threadCounts = ints(args[++i]); break;
+                case "-p": {
+                    String[] kv = args[++i].split("=", 2);
+                    params.put(kv[0], ints(kv[1]));
+                    break;
+                }
+                case "-l":
+                    for (BoardBenchmarks.Benchmark b : BoardBenchmarks.all()) {
+                        System.out.println(b.name + " (" + b.mode() + ")");
+                    }
+                    return;
+                case "--child": child = true; break;
+                default: filter = args[i];
+            }
+        }
+
+        Pattern pattern = Pattern.compile(filter);
+        if (!child) {
+            System.out.printf("%-28s %8s %5s %7s %5s %4s %14s %12s  %s%n",
+                    "Benchmark", "(notes)", "(pins)", "threads", "Mode", "Cnt", "Score", "Stdev", "Units");
+        }
+        for (BoardBenchmarks.Benchmark b : BoardBenchmarks.all()) {
+            if (!pattern.matcher(b.name).matches()) {
+                continue;
+            }
+            for (int notes : params.get("notes")) {
+                for (int pins : params.get("pins")) {
+                    for (int threads : threadCounts) {
+                        if (threads > b.maxThreads()) {
+                            continue;
+                        }
+                        double[] scores = (forks == 0 || child)
+                                ? measure(b, notes, pins, threads)
+                                : fork(b, notes, pins, threads);
+                        if (child) {
+                            // parent collects these from our stdout
+                            StringBuilder line = new StringBuilder("RESULT");
+                            for (double s : scores) {
+                                line.append(' ').append(s);
+                            }
+                            System.out.println(line);
+                        } else {
+                            report(b, notes, pins, threads, scores);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // every measurement iteration's score
+    private static double[] measure(BoardBenchmarks.Benchmark b, int notes, int pins, int threads) throws Exception {
+        double[] scores = new double[iterations];
+        for (int i = 0; i < warmups + iterations; i++) {
+            b.setup(notes, pins, threads);
+            double score = b.singleShot ? singleShot(b, threads) : throughput(b, threads);
+            if (i >= warmups) {
+                scores[i - warmups] = score;
+            }
+        }
+        return scores;
+    }
+
+    // ops/s with every thread looping for the iteration time
+    private static double throughput(BoardBenchmarks.Benchmark b, int threads) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        long[] counts = new long[threads];
+        stop = false;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long ops = 0;
+                long local = 0;
+                try {
+                    start.await();
+                    while (!stop) {
+                        local += b.run(thread, ops).length();
+                        ops++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                counts[thread] = ops;
+                sink += local;
+            });
+            workers[t].start();
+        }
+        // taken before the release: on a busy machine the workers may run before we do
+        long begin = System.nanoTime();
+        start.await();
+        Thread.sleep((long) (seconds * 1000));
+        stop = true;
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total / (elapsed / 1e9);
+    }
+
+    // us/op for one batch of operations split over the threads
+    private static double singleShot(BoardBenchmarks.Benchmark b, int threads) throws Exception {
+        int batch = b.batch();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            long from = (long) batch * t / threads;
+            long to = (long) batch * (t + 1) / threads;
+            workers[t] = new Thread(() -> {
+                long local = 0;
+                try {
+                    start.await();
+                    for (long i = from; i < to; i++) {
+                        local += b.run(thread, i).length();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                sink += local;
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.await();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return (System.nanoTime() - begin) / 1e3 / batch;
+    }
+
+    // same combination in a fresh JVM per fork, scores of all forks together
+    private static double[] fork(BoardBenchmarks.Benchmark b, int notes, int pins, int threads) throws Exception {
+        List<Double> all = new ArrayList<>();
+        for (int f = 0; f < forks; f++) {
+            List<String> cmd = new ArrayList<>(List.of(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    "BenchmarkRunner", "--child", Pattern.quote(b.name),
+                    "-wi", "" + warmups, "-i", "" + iterations, "-r", "" + seconds,
+                    "-t", "" + threads, "-p", "notes=" + notes, "-p", "pins=" + pins));
+            Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("RESULT")) {
+                        String[] parts = line.split(" ");
+                        for (int i = 1; i < parts.length; i++) {
+                            all.add(Double.parseDouble(parts[i]));
+                        }
+                    }
+                }
+            }
+            if (p.waitFor() != 0) {
+                throw new IllegalStateException("Fork of " + b.name + " failed");
+            }
+        }
+        double[] scores = new double[all.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = all.get(i);
+        }
+        return scores;
+    }
+
+    private static void report(BoardBenchmarks.Benchmark b, int notes, int pins, int threads, double[] scores) {
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double s : scores) {
+            variance += (s - mean) * (s - mean);
+        }
+        double stdev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+        System.out.printf("%-28s %8d %5d %7d %5s %4d %14.3f %12.3f  %s%n", b.name, notes, pins, threads,
+                b.mode(), scores.length, mean, stdev, b.singleShot ? "us/op" : "ops/s");
+    }
+
+    private static List<Integer> ints(String csv) {
+        List<Integer> values = new ArrayList<>();
+        for (String v : csv.split(",")) {
+            values.add(Integer.parseInt(v.trim()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,292 @@
+import java.util.*;
+
+/*Benchmarks for Board and ProtocolParser, run by BenchmarkRunner.
+Responsible for the following:
+    - Setting up a board with the requested number of notes and pins per note
+    - Defining one operation per benchmark: the Board mutators, getFilteredNotes with
+      every filter combination, getPins, ProtocolParser.parse, and mixed read/write workloads
+Board layout: 2x2 notes on a grid of 2x2 slots (no two notes overlap), colours
+round robin, messages "note <k> about topic<k % 100>" so refersTo=topicN matches 1%.
+Preloaded pins use cells 0-2 of a note (so at most 3); cell 3 (x+1, y+1) is left
+free for the benchmarks that pin and unpin.
+Which note an operation touches comes from a hash of (thread, i), so runs repeat
+exactly and threads don't fight over the same note more than the workload says.
+*/
+
+public class BoardBenchmarks {
+
+    private static final int NOTE = 2;
+    private static final String[] COLOURS = {"yellow", "blue", "green"};
+    private static final int TOPICS = 100;
+
+    public abstract static class Benchmark {
+        final String name;
+        final boolean singleShot;
+
+        Board board;
+        int notes;
+        int pins;
+        int threads;
+        private int side; // slots per row
+
+        Benchmark(String name, boolean singleShot) {
+            this.name = name;
+            this.singleShot = singleShot;
+        }
+
+        String mode() {
+            return singleShot ? "ss" : "thrpt";
+        }
+
+        int maxThreads() {
+            return Integer.MAX_VALUE;
+        }
+
+        // single shot: operations per iteration
+        int batch() {
+            return notes;
+        }
+
+        // builds the board for one iteration; throughput benchmarks leave the board
+        // as they found it, so they keep it for every iteration with the same parameters
+        void setup(int notes, int pins, int threads) {
+            boolean same = board != null && notes == this.notes && pins == this.pins && threads == this.threads;
+            this.threads = threads;
+            if (same && !singleShot) {
+                return;
+            }
+            this.notes = notes;
+            this.pins = Math.min(pins, 3);
+            // room for twice the preloaded notes, the post benchmark fills the second half
+            side = (int) Math.ceil(Math.sqrt(2.0 * notes));
+            board = newBoard(side * NOTE);
+            for (int k = 0; k < notes; k++) {
+                board.post(x(k), y(k), COLOURS[k % COLOURS.length], message(k));
+                if (pinned(k)) {
+                    for (int c = 0; c < this.pins; c++) {
+                        board.pin(x(k) + c % NOTE, y(k) + c / NOTE);
+                    }
+                }
+            }
+            prepare();
+        }
+
+        Board newBoard(int width) {
+            return new Board("bench", width, width, NOTE, NOTE, Arrays.asList(COLOURS));
+        }
+
+        // whether preloaded note k gets pins
+        boolean pinned(int k) {
+            return true;
+        }
+
+        // extra per-iteration setup after the notes are in
+        void prepare() {
+        }
+
+        abstract String run(int thread, long i);
+
+        int x(int k) {
+            return (k % side) * NOTE;
+        }
+
+        int y(int k) {
+            return (k / side) * NOTE;
+        }
+
+        // a note picked by hash of (thread, i)
+        int note(int thread, long i) {
+            return (int) Long.remainderUnsigned(mix(i * threads + thread), notes);
+        }
+
+        int[] pointIn(int k) {
+            return new int[] {x(k) + 1, y(k)};
+        }
+
+        String colour(int k) {
+            return COLOURS[k % COLOURS.length];
+        }
+
+        String topic(int thread, long i) {
+            return "topic" + Long.remainderUnsigned(mix(i * threads + thread + 7), TOPICS);
+        }
+    }
+
+    static String message(int k) {
+        return "note " + k + " about topic" + (k % TOPICS);
+    }
+
+    // splitmix64 finaliser, cheap and well spread
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> all = new ArrayList<>();
+
+        // mutators, single shot against a fresh board
+        all.add(new Benchmark("post", true) {
+            String[] messages;
+
+            void prepare() {
+                messages = new String[notes];
+                for (int i = 0; i < notes; i++) {
+                    messages[i] = message(notes + i);
+                }
+            }
+
+            String run(int thread, long i) {
+                int k = notes + (int) i; // second half of the slots is empty
+                return board.post(x(k), y(k), colour(k), messages[(int) i]);
+            }
+        });
+        all.add(new Benchmark("pin", true) {
+            String run(int thread, long i) {
+                int k = (int) i;
+                return board.pin(x(k) + 1, y(k) + 1);
+            }
+        });
+        all.add(new Benchmark("unpin", true) {
+            void prepare() {
+                for (int k = 0; k < notes; k++) {
+                    board.pin(x(k) + 1, y(k) + 1);
+                }
+            }
+
+            String run(int thread, long i) {
+                int k = (int) i;
+                return board.unpin(x(k) + 1, y(k) + 1);
+            }
+        });
+        all.add(new Benchmark("shake", true) {
+            // half the notes pinned (with pins=0 none are), the rest fall off
+            boolean pinned(int k) {
+                return k % 2 == 0;
+            }
+
+            int batch() {
+                return 1;
+            }
+
+            int maxThreads() {
+                return 1;
+            }
+
+            String run(int thread, long i) {
+                return board.shake();
+            }
+        });
+
+        // SHAKE with every note pinned (with pins=0 it empties the board once): nothing
+        // falls off, so this is only what a SHAKE costs beyond the notes it removes
+        all.add(new Benchmark("shakePinned", false) {
+            int maxThreads() {
+                return 1;
+            }
+
+            String run(int thread, long i) {
+                return board.shake();
+            }
+        });
+
+        // GET PINS on a board where only 1 note in 100 is pinned (none with pins=0)
+        all.add(new Benchmark("getPins", false) {
+            boolean pinned(int k) {
+                return k % 100 == 0;
+            }
+
+            String run(int thread, long i) {
+                return board.getPins();
+            }
+        });
+
+        // getFilteredNotes, every combination of colour= contains= refersTo=
+        for (int filters = 0; filters < 8; filters++) {
+            boolean byColour = (filters & 1) != 0;
+            boolean byContains = (filters & 2) != 0;
+            boolean byRefersTo = (filters & 4) != 0;
+            String name = "get" + (byColour ? "Colour" : "") + (byContains ? "Contains" : "")
+                    + (byRefersTo ? "RefersTo" : "");
+            all.add(new Benchmark(name, false) {
+                String run(int thread, long i) {
+                    int k = note(thread, i);
+                    return board.getFilteredNotes(byColour ? colour(k) : null,
+                            byContains ? pointIn(k) : null,
+                            byRefersTo ? topic(thread, i) : null);
+                }
+            });
+        }
+
+        // colour= with a refersTo= every message matches ("about"): the colour list is
+        // the smaller way in, every note is in the trigram postings (see QueryPlan)
+        all.add(new Benchmark("getColourCommonText", false) {
+            String run(int thread, long i) {
+                return board.getFilteredNotes(colour(note(thread, i)), null, "about");
+            }
+        });
+
+        // whole command path on the shared board, a cycle of typical lines per thread
+        all.add(new Benchmark("parse", false) {
+            String[][] lines;
+
+            Board newBoard(int width) {
+                // parse() without a connection goes to the default board
+                Board shared = new Board(Boards.DEFAULT, width, width, NOTE, NOTE, Arrays.asList(COLOURS));
+                Boards.add(shared);
+                return shared;
+            }
+
+            void prepare() {
+                lines = new String[threads][64];
+                for (int t = 0; t < threads; t++) {
+                    for (int j = 0; j < 64; j += 8) {
+                        int k = note(t, j);
+                        int px = x(k) + 1;
+                        int py = y(k) + 1;
+                        lines[t][j] = "GET colour=" + colour(k) + " refersTo=" + topic(t, j);
+                        lines[t][j + 1] = "GET contains= " + px + " " + py;
+                        lines[t][j + 2] = "PIN " + px + " " + py;
+                        lines[t][j + 3] = "GET refersTo=" + topic(t, j + 3);
+                        lines[t][j + 4] = "UNPIN " + px + " " + py;
+                        lines[t][j + 5] = "POST -1 0 yellow out of bounds";
+                        lines[t][j + 6] = "BOGUS command";
+                        lines[t][j + 7] = "GET contains= " + px + " " + py + " refersTo=note";
+                    }
+                }
+            }
+
+            String run(int thread, long i) {
+                return ProtocolParser.parse(lines[thread][(int) (i & 63)]);
+            }
+        });
+
+        // contended mixes: reads are the GETs a polling client sends, writes pin and
+        // then unpin cell 3 of a note, so the board stays the same size throughout
+        all.add(mix("mixRead90", 9));
+        all.add(mix("mixRead50", 5));
+        return all;
+    }
+
+    // readTenths out of every 10 operations are reads
+    private static Benchmark mix(String name, int readTenths) {
+        return new Benchmark(name, false) {
+            String run(int thread, long i) {
+                int slot = (int) (i % 10);
+                if (slot < readTenths) {
+                    int k = note(thread, i);
+                    switch (slot % 4) {
+                        case 0: return board.getFilteredNotes(null, null, null);
+                        case 1: return board.getFilteredNotes(colour(k), pointIn(k), null);
+                        case 2: return board.getFilteredNotes(null, null, topic(thread, i));
+                        default: return board.getFilteredNotes(null, pointIn(k), null);
+                    }
+                }
+                long write = (i / 10) * (10 - readTenths) + (slot - readTenths);
+                int k = note(thread, write / 2);
+                return (write & 1) == 0 ? board.pin(x(k) + 1, y(k) + 1) : board.unpin(x(k) + 1, y(k) + 1);
+            }
+        };
+    }
+}
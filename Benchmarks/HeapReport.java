@@ -0,0 +1,150 @@
+import com.sun.management.*;
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/*Heap, off-heap and GC cost of holding a big board in memory.
+Responsible for the following:
+    - Filling a Board with N notes (some pinned) and measuring the live heap and
+      direct memory after a full collection, plus how long that full collection took
+    - Churning it: rounds of SHAKE, re-POSTing what was shaken off and a full GET
+      snapshot, while recording every GC pause the JVM reports
+    - Printing both, so a storage change can be compared run against run
+Only uses Board's public methods, so the same file runs against older trees too.
+Usage (compiled with the benchmarks, see BenchmarkRunner):
+    java -Xmx4g -cp classes HeapReport [--notes=1000000] [--pinned=10] [--rounds=10] [--message=40]
+--pinned is the percentage of notes that survive a SHAKE, --message the message length.
+*/
+
+public class HeapReport {
+
+    private static final List<long[]> pauses = Collections.synchronizedList(new ArrayList<>());
+    private static volatile boolean recording = false;
+
+    public static void main(String[] args) throws Exception {
+        int notes = 1_000_000;
+        int pinnedPercent = 10;
+        int rounds = 10;
+        int messageLength = 40;
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            int value = Integer.parseInt(kv[1]);
+            switch (kv[0]) {
+                case "notes" -> notes = value;
+                case "pinned" -> pinnedPercent = value;
+                case "rounds" -> rounds = value;
+                case "message" -> messageLength = value;
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        listenForPauses();
+
+        // one note per 2x2 spot of a square board, so every POST succeeds
+        int side = (int) Math.ceil(Math.sqrt(notes)) * 2 + 2;
+        Board board = new Board("heap", side, side, 2, 2, Arrays.asList("yellow", "blue", "green"));
+        Random random = new Random(42);
+        String[] colours = {"yellow", "blue", "green"};
+        int[] xs = new int[notes];
+        int[] ys = new int[notes];
+        long fillStart = System.nanoTime();
+        for (int i = 0; i < notes; i++) {
+            xs[i] = (i % (side / 2 - 1)) * 2;
+            ys[i] = (i / (side / 2 - 1)) * 2;
+            board.post(xs[i], ys[i], colours[i % 3], message(random, messageLength, i));
+            if (random.nextInt(100) < pinnedPercent) {
+                board.pin(xs[i], ys[i]);
+            }
+        }
+        long fillNanos = System.nanoTime() - fillStart;
+
+        long fullGcNanos = fullGc();
+        System.out.printf(Locale.ROOT, "notes             %d (%d%% pinned, %d char messages)%n", notes, pinnedPercent,
+                messageLength);
+        System.out.printf(Locale.ROOT, "fill              %.1f s%n", fillNanos / 1e9);
+        System.out.printf(Locale.ROOT, "heap used         %.1f MB (%.0f bytes/note)%n", heapUsed() / 1e6,
+                (double) heapUsed() / notes);
+        System.out.printf(Locale.ROOT, "direct memory     %.1f MB%n", directUsed() / 1e6);
+        System.out.printf(Locale.ROOT, "full GC           %.0f ms%n", fullGcNanos / 1e6);
+
+        // churn: shake the unpinned notes off, post them back, take a full GET each round
+        pauses.clear();
+        recording = true;
+        long churnStart = System.nanoTime();
+        long getBytes = 0;
+        for (int round = 0; round < rounds; round++) {
+            board.shake();
+            for (int i = 0; i < notes; i++) {
+                board.post(xs[i], ys[i], colours[i % 3], message(random, messageLength, i));
+            }
+            getBytes += board.getFilteredNotes(null, null, null).length();
+        }
+        long churnNanos = System.nanoTime() - churnStart;
+        recording = false;
+
+        long pauseTotal = 0;
+        long pauseMax = 0;
+        synchronized (pauses) {
+            for (long[] p : pauses) {
+                pauseTotal += p[0];
+                pauseMax = Math.max(pauseMax, p[0]);
+            }
+        }
+        System.out.printf(Locale.ROOT, "churn             %d rounds in %.1f s (%d GET chars)%n", rounds,
+                churnNanos / 1e9, getBytes);
+        System.out.printf(Locale.ROOT, "GC pauses         %d, total %d ms, max %d ms (%.1f%% of churn)%n",
+                pauses.size(), pauseTotal, pauseMax, 100.0 * pauseTotal * 1e6 / churnNanos);
+        System.out.printf(Locale.ROOT, "heap after churn  %.1f MB, full GC %.0f ms%n", heapUsed() / 1e6,
+                fullGc() / 1e6);
+    }
+
+    private static String message(Random random, int length, int i) {
+        StringBuilder sb = new StringBuilder(length);
+        sb.append("Note ").append(i).append(' ');
+        while (sb.length() < length) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    // collects until the heap stops shrinking, returns how long the first collection took
+    private static long fullGc() {
+        long start = System.nanoTime();
+        System.gc();
+        long nanos = System.nanoTime() - start;
+        System.gc();
+        return nanos;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    // every collection the JVM reports while churning; only stop-the-world ones count
+    // (concurrent cycles, e.g. ZGC's or G1's marking, run next to the application)
+    private static void listenForPauses() {
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getName().contains("Cycles") || gc.getName().equals("G1 Concurrent GC")) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!recording || !notification.getType().equals(
+                        GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData());
+                pauses.add(new long[] {info.getGcInfo().getDuration()});
+            }, null, null);
+        }
+    }
+}
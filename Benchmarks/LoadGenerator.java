@@ -0,0 +1,328 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/*Load generator for a running BBoard server (replaces the old tester.java).
+Responsible for the following:
+    - Opening many concurrent connections (one virtual thread each) and reading the
+      BOARD / NOTE / COLOURS handshake, so commands fit the server's board
+    - Sending an open-loop command mix at a fixed total rate for a set duration
+    - Recording per-command latency histograms, with and without coordinated-omission correction
+    - Printing throughput and p50 / p99 / p99.9 / max per command
+Open loop: every connection has a schedule of send times (rate / connections per second,
+staggered between connections) that doesn't move when the server is slow. Latency is
+measured from the scheduled send time, so a stall counts against every command that
+should have been sent during it, not just the one that was waiting (coordinated omission).
+The service time, measured from the actual send, is printed too; a big gap between the
+two means the server (or this client) couldn't keep up with the rate.
+Commands in the mix:
+    post    POST at a random note-aligned spot, random colour
+    pin     PIN at a random point
+    unpin   UNPIN at a random point
+    get     plain GET (the whole board)
+    filter  GET colour=<random> contains= <random point>
+    shake   SHAKE
+    page    one page of the whole board: GET LIMIT 100, then GET CURSOR <cursor> LIMIT 100
+            from where that connection's last page stopped, starting over after the last page
+            (not in the default mix)
+Usage (compiled with the benchmarks, see BenchmarkRunner):
+    java -cp classes LoadGenerator [host] [port] [--connections=1000] [--rate=5000]
+        [--duration=30] [--warmup=5] [--mix=post:20,pin:15,unpin:10,get:40,filter:14,shake:1]
+*/
+
+public class LoadGenerator {
+
+    private static final String[] COMMANDS = {"post", "pin", "unpin", "get", "filter", "shake", "page"};
+
+    private static final int PAGE_SIZE = 100;
+
+    private static String host = "localhost";
+    private static int port = 4554;
+    private static int connections = 1000;
+    private static double rate = 5000; // commands per second over all connections
+    private static double duration = 30; // seconds measured
+    private static double warmup = 5; // seconds sent but not recorded
+    private static int[] weights = {20, 15, 10, 40, 14, 1, 0};
+
+    // per command: latency from the scheduled send, and from the actual send
+    private static final LatencyHistogram[] corrected = new LatencyHistogram[COMMANDS.length];
+    private static final LatencyHistogram[] service = new LatencyHistogram[COMMANDS.length];
+    private static final AtomicLongArray errors = new AtomicLongArray(COMMANDS.length);
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            String[] kv = arg.substring(2).split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "connections": connections = Integer.parseInt(value); break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "duration": duration = Double.parseDouble(value); break;
+                case "warmup": warmup = Double.parseDouble(value); break;
+                case "mix": weights = parseMix(value); break;
+                default:
+                    System.err.println("Unknown option --" + kv[0]);
+                    System.exit(1);
+            }
+        }
+        if (positional.size() > 0) {
+            host = positional.get(0);
+        }
+        if (positional.size() > 1) {
+            port = Integer.parseInt(positional.get(1));
+        }
+        for (int c = 0; c < COMMANDS.length; c++) {
+            corrected[c] = new LatencyHistogram();
+            service[c] = new LatencyHistogram();
+        }
+
+        System.out.printf("%d connections to %s:%d, %.0f cmd/s for %.0fs after %.0fs warmup%n",
+                connections, host, port, rate, duration, warmup);
+
+        // every connection sends once per interval, connection i starts i/connections of an interval in
+        long interval = (long) (connections * 1e9 / rate);
+        // connecting thousands of sockets takes a moment, the schedule starts once they are up
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] start = new long[1];
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            threads.add(Thread.ofVirtual().start(() -> {
+                Connection conn = null;
+                try {
+                    conn = new Connection(id);
+                    connected.incrementAndGet();
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                }
+                ready.countDown();
+                if (conn == null) {
+                    return;
+                }
+                try {
+                    go.await();
+                    conn.run(start[0] + interval * id / connections, interval);
+                } catch (IOException | InterruptedException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    conn.close();
+                }
+            }));
+        }
+        ready.await();
+        System.out.printf("%d connected, %d failed%n", connected.get(), failed.get());
+        start[0] = System.nanoTime();
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(failed.get());
+    }
+
+    // one client connection working through its share of the schedule
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private final SplittableRandom random;
+        private final int boardWidth, boardHeight, noteWidth, noteHeight;
+        private final String[] colours;
+        private String cursor; // where the next page starts, null = from the beginning
+
+        Connection(int id) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            random = new SplittableRandom(id);
+
+            // handshake: BOARD w h, NOTE w h, COLOURS c1 c2 ...
+            String[] board = handshake("BOARD");
+            String[] note = handshake("NOTE");
+            String[] colourLine = handshake("COLOURS");
+            boardWidth = Integer.parseInt(board[1]);
+            boardHeight = Integer.parseInt(board[2]);
+            noteWidth = Integer.parseInt(note[1]);
+            noteHeight = Integer.parseInt(note[2]);
+            colours = Arrays.copyOfRange(colourLine, 1, colourLine.length);
+        }
+
+        private String[] handshake(String expected) throws IOException {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(expected)) {
+                throw new IOException("Expected " + expected + " in handshake, got " + line);
+            }
+            return line.trim().split("\\s+");
+        }
+
+        void run(long first, long interval) throws IOException {
+            long recordFrom = first + (long) (warmup * 1e9);
+            long end = first + (long) ((warmup + duration) * 1e9);
+            for (long intended = first; intended < end; intended += interval) {
+                // behind schedule (slow replies) means no wait, the backlog is sent at once
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int command = pick();
+                long sent = System.nanoTime();
+                out.print(line(command));
+                out.print('\n');
+                out.flush();
+                boolean ok = readReply(command);
+                long done = System.nanoTime();
+                if (intended >= recordFrom) {
+                    corrected[command].record(done - intended);
+                    service[command].record(done - sent);
+                    if (!ok) {
+                        errors.incrementAndGet(command);
+                    }
+                }
+            }
+            out.print("DISCONNECT\n");
+            out.flush();
+        }
+
+        private int pick() {
+            int total = 0;
+            for (int w : weights) {
+                total += w;
+            }
+            int r = random.nextInt(total);
+            for (int c = 0; c < weights.length; c++) {
+                r -= weights[c];
+                if (r < 0) {
+                    return c;
+                }
+            }
+            return weights.length - 1;
+        }
+
+        private String line(int command) {
+            switch (COMMANDS[command]) {
+                case "post": {
+                    int x = random.nextInt(Math.max(1, boardWidth / noteWidth)) * noteWidth;
+                    int y = random.nextInt(Math.max(1, boardHeight / noteHeight)) * noteHeight;
+                    return "POST " + x + " " + y + " " + colour() + " load " + random.nextInt(1000);
+                }
+                case "pin": return "PIN " + point();
+                case "unpin": return "UNPIN " + point();
+                case "get": return "GET";
+                case "filter": return "GET colour=" + colour() + " contains= " + point();
+                case "page": return cursor == null ? "GET LIMIT " + PAGE_SIZE : "GET CURSOR " + cursor + " LIMIT " + PAGE_SIZE;
+                default: return "SHAKE";
+            }
+        }
+
+        private String point() {
+            return random.nextInt(boardWidth) + " " + random.nextInt(boardHeight);
+        }
+
+        private String colour() {
+            return colours.length == 0 ? "yellow" : colours[random.nextInt(colours.length)];
+        }
+
+        // GETs answer with note lines up to GET_COMPLETE (a page: or GET_MORE and its
+        // cursor), everything else with one line. false for an ERROR reply
+        private boolean readReply(int command) throws IOException {
+            boolean page = COMMANDS[command].equals("page");
+            boolean get = page || COMMANDS[command].equals("get") || COMMANDS[command].equals("filter");
+            while (true) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Server closed the connection");
+                }
+                if (line.startsWith("ERROR")) {
+                    if (page) {
+                        cursor = null;
+                    }
+                    return false;
+                }
+                if (page && line.startsWith("SUCCESS GET_MORE ")) {
+                    cursor = line.substring("SUCCESS GET_MORE ".length()).trim();
+                    return true;
+                }
+                if (page && line.startsWith("SUCCESS GET_COMPLETE")) {
+                    cursor = null;
+                }
+                if (!get || line.startsWith("SUCCESS GET_COMPLETE")) {
+                    return true;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private static void report(int failures) {
+        System.out.println();
+        System.out.println("Latency from scheduled send (coordinated-omission corrected), ms:");
+        table(corrected);
+        System.out.println();
+        System.out.println("Service time from actual send (uncorrected), ms:");
+        table(service);
+
+        long total = 0;
+        for (LatencyHistogram h : corrected) {
+            total += h.count();
+        }
+        System.out.println();
+        System.out.printf("Target %.0f cmd/s, achieved %.0f cmd/s%s%n", rate, total / duration,
+                failures > 0 ? ", " + failures + " connections failed" : "");
+    }
+
+    private static void table(LatencyHistogram[] histograms) {
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+                "Command", "Count", "Errors", "cmd/s", "p50", "p99", "p99.9", "max");
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        for (int c = 0; c < COMMANDS.length; c++) {
+            if (histograms[c].count() == 0) {
+                continue;
+            }
+            row(COMMANDS[c], histograms[c], errors.get(c));
+            all.add(histograms[c]);
+            allErrors += errors.get(c);
+        }
+        row("all", all, allErrors);
+    }
+
+    private static void row(String name, LatencyHistogram h, long errorCount) {
+        System.out.printf("%-8s %10d %8d %10.0f %10.3f %10.3f %10.3f %10.3f%n", name, h.count(), errorCount,
+                h.count() / duration, h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6,
+                h.percentile(0.999) / 1e6, h.max() / 1e6);
+    }
+
+    // "post:20,get:80" -> weights in COMMANDS order, anything not named gets 0
+    private static int[] parseMix(String mix) {
+        int[] parsed = new int[COMMANDS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":", 2);
+            int c = Arrays.asList(COMMANDS).indexOf(kv[0].trim().toLowerCase());
+            if (c < 0 || kv.length < 2) {
+                throw new IllegalArgumentException("Bad mix entry '" + part + "', commands are " + String.join(" ", COMMANDS));
+            }
+            parsed[c] = Integer.parseInt(kv[1].trim());
+        }
+        if (Arrays.stream(parsed).sum() <= 0) {
+            throw new IllegalArgumentException("Mix needs at least one command with a positive weight");
+        }
+        return parsed;
+    }
+}
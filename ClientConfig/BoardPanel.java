@@ -55,6 +55,62 @@ public class BoardPanel extends JPanel {
         repaint();
     }
 
+    // These methods apply the server's GET SINCE deltas. A paged full GET reads each
+    // page at a later version than the one before, and the deltas replayed from the first
+    // page's version may already be part of a later page. So a change at 'version' only
+    // touches notes synced before it (ClientNote.version). Pins are kept one entry per
+    // pinned note (the same way GET lists them), and each note keeps its own as well.
+    public void pinNote(int x, int y, long version) {
+        // PIN pins every note covering (x, y)
+        for (ClientNote n : notes) {
+            if (n.version < version && n.contains(x, y)) {
+                n.pins.add(new Point(x, y));
+                pins.add(new Point(x, y));
+            }
+        }
+        repaint();
+    }
+
+    public void unpinNote(int x, int y, long version) {
+        // UNPIN takes the pins at (x, y) off the first posted note pinned there. Notes
+        // come in post order; if none synced before 'version' is pinned there, a later
+        // page already had the note unpinned
+        Point p = new Point(x, y);
+        for (ClientNote n : notes) {
+            if (n.version < version && n.pins.contains(p)) {
+                while (n.pins.remove(p)) {
+                    pins.remove(p);
+                }
+                break;
+            }
+        }
+        repaint();
+    }
+
+    // a board holds at most one note anchored at any spot; true if it is there already
+    // as of 'version' (a later page of a paged GET had it)
+    public boolean hasNoteAt(int x, int y, long version) {
+        return notes.stream().anyMatch(n -> n.x == x && n.y == y && n.version >= version);
+    }
+
+    public void removeNoteAt(int x, int y, long version) {
+        notes.removeIf(n -> n.x == x && n.y == y && n.version < version && dropPins(n));
+        repaint();
+    }
+
+    // CLEAR as a delta: notes posted after it may already have come in a later page
+    public void clear(long version) {
+        notes.removeIf(n -> n.version < version && dropPins(n));
+        repaint();
+    }
+
+    private boolean dropPins(ClientNote n) {
+        for (Point p : n.pins) {
+            pins.remove(p);
+        }
+        return true;
+    }
+
     // This method clears the board.
     public void clear() {
         notes.clear();
@@ -42,6 +42,27 @@ public class BulletinBoardClient extends JFrame {
     private java.util.List<ClientNote> tempNotes = new ArrayList<>();
     private java.util.List<Point> tempPins = new ArrayList<>();
 
+    // Delta sync: version of the board we last fully applied (-1 = unknown, do a
+    // full GET). Once known, polls ask for GET SINCE <version> instead.
+    // Every version is one change line (DELTA or EVENT), so a line is applied only
+    // when it is exactly the next version: older ones are duplicates, newer ones
+    // mean we missed something and ask for GET SINCE again.
+    private long boardVersion = -1;
+    private long pendingVersion = -1; // version from the header of a full GET in progress
+    // A full GET comes in pages of SYNC_PAGE notes: each GET_MORE asks for the next page
+    // and the notes stay buffered until GET_COMPLETE. pendingVersion is the first page's,
+    // GET SINCE from there replays whatever changed while the later pages were read.
+    // Every note is tagged with the version of the page it came in (pageVersion), so
+    // the replay skips changes a later page already showed (see BoardPanel)
+    private static final int SYNC_PAGE = 1000;
+    private boolean pagingSupported = true; // cleared when the server rejects LIMIT (older servers)
+    private boolean nextPageRequested = false; // the next header continues the full GET in progress
+    private long pageVersion = -1; // version of the page being read
+    private long lastSeenVersion = -1; // newest version mentioned by the server so far
+    private boolean syncInFlight = false;
+    // Push: once SUBSCRIBEd the server sends EVENT lines and polling is switched off
+    private boolean subscribed = false;
+
     // Visual Board
     private BoardPanel boardPanel;
 
@@ -87,10 +108,7 @@ public class BulletinBoardClient extends JFrame {
         // Added an init polling timer to sync the board on connect
         pollingTimer = new Timer(3000, e -> {
             if (networkClient.isConnected()) {
-                // Poll: ALWAYS fetch full board to sync state
-                manualFilterActive = false;
-                verboseLog = false; // Suppress logs for this poll
-                networkClient.sendRequest(CommandBuilder.buildGet("", null, null, ""), true);
+                requestSync();
             }
         });
 
@@ -515,6 +533,23 @@ public class BulletinBoardClient extends JFrame {
         }
     }
 
+    // Poll: fetch only the changes if we know our version, otherwise the full board
+    private void requestSync() {
+        if (syncInFlight) {
+            return; // the reply to the last one brings us up to date anyway
+        }
+        syncInFlight = true;
+        manualFilterActive = false;
+        verboseLog = false; // Suppress logs for this poll
+        if (boardVersion >= 0) {
+            networkClient.sendRequest(CommandBuilder.buildGetSince(boardVersion), true);
+        } else if (pagingSupported) {
+            networkClient.sendRequest(CommandBuilder.buildGetPage(null, SYNC_PAGE), true);
+        } else {
+            networkClient.sendRequest(CommandBuilder.buildGet("", null, null, ""), true);
+        }
+    }
+
     // Temp storage
     private ClientNote lastPostNote;
     private String lastCommand = "";
@@ -541,11 +576,23 @@ public class BulletinBoardClient extends JFrame {
             connectButton.setEnabled(true);
             disconnectButton.setEnabled(false);
             boardPanel.clear(); // Reset board on disconnect
+            boardVersion = -1;
+            lastSeenVersion = -1;
+            syncInFlight = false;
+            nextPageRequested = false;
+            pagingSupported = true; // the next server may well have it
+            subscribed = false;
             log("Disconnected from server.");
             pollingTimer.stop();
         });
     }
 
+    // public method for NetworkClient to hand over pushed EVENT lines (not logged,
+    // they arrive all the time just like the polling replies)
+    public void onServerEvent(String line) {
+        SwingUtilities.invokeLater(() -> applyChange(line));
+    }
+
     // public methods for NetworkClient to call to update the GUI when logging
     // messages
     public void log(String message) {
@@ -561,6 +608,8 @@ public class BulletinBoardClient extends JFrame {
             boolean suppress = !verboseLog && isServerMsg &&
                     (serverContent.startsWith("NOTE") ||
                             serverContent.startsWith("PIN ") ||
+                            serverContent.startsWith("DELTA ") ||
+                            serverContent.contains("SUCCESS SINCE") ||
                             serverContent.contains("SUCCESS GET"));
 
             if (!suppress) {
@@ -571,7 +620,29 @@ public class BulletinBoardClient extends JFrame {
 
     // Parse server messages to update visual board
     private void handleServerResponse(String response) {
-        if (response.startsWith("BOARD")) {
+        if (response.startsWith("DELTA ")) {
+            applyChange(response);
+        } else if (response.startsWith("SUCCESS SINCE_COMPLETE")) {
+            // all deltas applied, catch up again if events overtook the reply
+            syncInFlight = false;
+            catchUp();
+        } else if (response.startsWith("SUCCESS SINCE RESYNC")) {
+            // our version is too old for the server's change log, fetch everything
+            syncInFlight = false;
+            boardVersion = -1;
+            requestSync();
+        } else if (response.startsWith("SUCCESS SINCE")) {
+            // SUCCESS SINCE <from> <to>, the DELTA lines carry their own versions
+        } else if (response.startsWith("SUCCESS SUBSCRIBED")) {
+            // SUCCESS SUBSCRIBED <version>: from here on changes are pushed to us
+            subscribed = true;
+            pollingTimer.stop();
+            try {
+                lastSeenVersion = Math.max(lastSeenVersion, Long.parseLong(response.split(" ")[2]));
+            } catch (Exception e) {
+            }
+            catchUp();
+        } else if (response.startsWith("BOARD")) {
             // BOARD <w> <h>
             String[] parts = response.split(" ");
             if (parts.length >= 3) {
@@ -609,7 +680,9 @@ public class BulletinBoardClient extends JFrame {
                     }
 
                     if (isBuffering) {
-                        tempNotes.add(new ClientNote(x, y, noteWidth, noteHeight, color, msg));
+                        ClientNote note = new ClientNote(x, y, noteWidth, noteHeight, color, msg);
+                        note.version = pageVersion;
+                        tempNotes.add(note);
                     } else {
                         boardPanel.addNote(new ClientNote(x, y, noteWidth, noteHeight, color, msg));
                     }
@@ -623,7 +696,33 @@ public class BulletinBoardClient extends JFrame {
             if (isBuffering) {
                 boardPanel.replaceAllNotes(new ArrayList<>(tempNotes), new ArrayList<>(tempPins));
                 isBuffering = false;
+                boardVersion = pendingVersion; // board now matches this version
+                syncInFlight = false;
+                catchUp();
+                // servers that report a version also support SUBSCRIBE, stop polling
+                if (!subscribed && boardVersion >= 0) {
+                    networkClient.sendRequest("SUBSCRIBE", true);
+                }
             }
+        } else if (response.startsWith("SUCCESS GET_MORE")) {
+            // SUCCESS GET_MORE <cursor>: one page of the full GET done, fetch the next
+            if (isBuffering) {
+                nextPageRequested = true;
+                String cursor = response.substring("SUCCESS GET_MORE".length()).trim();
+                networkClient.sendRequest(CommandBuilder.buildGetPage(cursor, SYNC_PAGE), true);
+            }
+        } else if (syncInFlight && pagingSupported && response.contains("Unknown GET field")) {
+            // server without LIMIT, fetch the board in one GET from now on
+            pagingSupported = false;
+            syncInFlight = false;
+            requestSync();
+        } else if (response.startsWith("ERROR INVALID_CURSOR")) {
+            // server restarted between pages, start the full GET over
+            isBuffering = false;
+            nextPageRequested = false;
+            syncInFlight = false;
+            boardVersion = -1;
+            requestSync();
         } else if (response.contains("SUCCESS GET")) {
             // Check for dimensions in the SUCCESS GET line
             // PROTOCOL: SUCCESS GET <w> <h> <nw> <nh>
@@ -662,10 +761,30 @@ public class BulletinBoardClient extends JFrame {
 
             // Only start buffering (updating board) if this is a SYNC request (not a manual
             // filter query)
-            if (!manualFilterActive) {
+            if (!manualFilterActive && nextPageRequested) {
+                // a later page of the same full GET: keep what is buffered, only note how
+                // far the board has moved on meanwhile (GET SINCE catches up afterwards)
+                nextPageRequested = false;
+                if (parts.length >= 8) {
+                    try {
+                        pageVersion = Long.parseLong(parts[7]);
+                        lastSeenVersion = Math.max(lastSeenVersion, pageVersion);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            } else if (!manualFilterActive) {
                 isBuffering = true;
                 tempNotes.clear();
                 tempPins.clear();
+                // PROTOCOL: ... [configured] [version], older servers don't send a version
+                pendingVersion = -1;
+                if (parts.length >= 8) {
+                    try {
+                        pendingVersion = Long.parseLong(parts[7]);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                pageVersion = pendingVersion;
             } else {
                 // If it is a manual filter query, we do NOT buffer.
                 // We just let the logs show the results.
@@ -674,8 +793,10 @@ public class BulletinBoardClient extends JFrame {
         } else if (response.contains("SUCCESS RESIZED")) {
             boardPanel.clear();
             log("Board resized by server. Refreshing...");
-            // Force a refresh if the board was resized
-            networkClient.sendRequest(CommandBuilder.buildGet("", null, null, ""));
+            // Force a refresh if the board was resized, and take our version from it
+            boardVersion = -1;
+            syncInFlight = false;
+            requestSync();
         } else if (response.contains("SUCCESS PINS EMPTY")) {
             log("No pins found on server.");
         } else if (response.startsWith("PIN ")) {
@@ -687,12 +808,25 @@ public class BulletinBoardClient extends JFrame {
                     int py = Integer.parseInt(parts[2]);
                     if (isBuffering) {
                         tempPins.add(new Point(px, py));
+                        if (!tempNotes.isEmpty()) {
+                            // PIN lines follow the NOTE they belong to
+                            tempNotes.get(tempNotes.size() - 1).pins.add(new Point(px, py));
+                        }
                     } else {
                         boardPanel.pinNote(px, py);
                     }
                 } catch (Exception e) {
                 }
             }
+        } else if (boardVersion >= 0 && (response.contains("POST_IT_POSTED") || response.contains("SUCCESS PINNED")
+                || response.contains("SUCCESS UNPINNED") || response.contains("SHAKE_COMPLETE")
+                || response.contains("BOARD_CLEARED"))) {
+            // With delta sync the server tells us exactly what changed, so take its
+            // change (pushed if subscribed, else fetched now) instead of guessing locally
+            lastPostNote = null;
+            if (!subscribed) {
+                requestSync();
+            }
         } else if (response.contains("POST_PARSED") || response.contains("POST_IT_POSTED")) {
             // SUCCESS POST_PARSED
             if (lastPostNote != null) {
@@ -726,8 +860,108 @@ public class BulletinBoardClient extends JFrame {
         }
     }
 
+    // Asks for the changes we know we're missing (an event newer than our board)
+    private void catchUp() {
+        if (boardVersion >= 0 && lastSeenVersion > boardVersion) {
+            requestSync();
+        }
+    }
+
+    // Applies one change line: DELTA <version> <event...> or EVENT <version> <event...>
+    private void applyChange(String line) {
+        String[] parts = line.split(" ");
+        long version;
+        try {
+            version = Long.parseLong(parts[1]);
+        } catch (Exception e) {
+            return;
+        }
+        lastSeenVersion = Math.max(lastSeenVersion, version);
+
+        // a full GET is on its way (or in progress), it already includes this change
+        if (boardVersion < 0 || isBuffering) {
+            return;
+        }
+        if (version <= boardVersion) {
+            return; // already have it (same change as DELTA and as EVENT)
+        }
+        if (version != boardVersion + 1) {
+            requestSync(); // missed one, GET SINCE fills the gap
+            return;
+        }
+        if (parts[2].equals("RESYNC")) {
+            // server couldn't describe the change, fetch the whole board
+            boardVersion = -1;
+            requestSync();
+            return;
+        }
+
+        try {
+            switch (parts[2]) {
+                case "POST": {
+                    // DELTA v POST x y colour message...
+                    int x = Integer.parseInt(parts[3]);
+                    int y = Integer.parseInt(parts[4]);
+                    String msg = parts.length > 6 ? String.join(" ", Arrays.copyOfRange(parts, 6, parts.length)) : "";
+                    if (boardPanel.hasNoteAt(x, y, version)) {
+                        break; // posted while a paged GET was read, a later page already had it
+                    }
+                    ClientNote note = new ClientNote(x, y, noteWidth, noteHeight, parts[5], msg);
+                    note.version = version;
+                    boardPanel.addNote(note);
+                    break;
+                }
+                case "PIN":
+                    // PIN x y <notes pinned>: pins each covering note this change is news to
+                    boardPanel.pinNote(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), version);
+                    break;
+                case "UNPIN":
+                    boardPanel.unpinNote(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), version);
+                    break;
+                case "REMOVE":
+                    // REMOVE x1 y1 x2 y2 ... every note one SHAKE took off
+                    for (int i = 3; i + 1 < parts.length; i += 2) {
+                        boardPanel.removeNoteAt(Integer.parseInt(parts[i]), Integer.parseInt(parts[i + 1]), version);
+                    }
+                    break;
+                case "CLEAR":
+                    boardPanel.clear(version);
+                    break;
+                case "RESIZE":
+                    // RESIZE w h nw nh <cleared>
+                    if (parts.length > 7 && Boolean.parseBoolean(parts[7])) {
+                        boardPanel.clear(version);
+                    }
+                    boardPanel.setBoardDimensions(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+                    noteWidth = Integer.parseInt(parts[5]);
+                    noteHeight = Integer.parseInt(parts[6]);
+                    boardPanel.repaint();
+                    break;
+                default:
+                    break;
+            }
+            boardVersion = version;
+        } catch (Exception e) {
+            // something we can't apply, safest is a full refresh
+            log("Error applying change: " + line);
+            boardVersion = -1;
+            requestSync();
+        }
+    }
+
     // main method to start the client
     public static void main(String[] args) {
+        // --binary: ask the server for the compact binary protocol (falls back to text)
+        NetworkClient.binaryRequested = Arrays.asList(args).contains("--binary");
+        // --compress: ask for deflated big replies (falls back to plain)
+        NetworkClient.compressRequested = Arrays.asList(args).contains("--compress");
+        // --board=<name>: work on that board instead of the server's default one
+        for (String arg : args) {
+            if (arg.startsWith("--board=")) {
+                NetworkClient.boardRequested = arg.substring("--board=".length());
+            }
+        }
+
         // use standard look and feel to keep it simple for now
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
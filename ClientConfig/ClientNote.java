@@ -1,11 +1,17 @@
 /* This class is a custom swing comment (extending JPanel) and is responsible for rendering the visual data of the bulletin board, including the grid, notes, and pins.
 * This is a helper class for the BulletinBoardClient class.
 */
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
 public class ClientNote {
     int x, y, width, height;
     String color;
     String message;
     boolean isPinned;
+    long version = -1; // board version it was synced at, see BoardPanel's delta methods
+    List<Point> pins = new ArrayList<>(); // this note's pins, one entry per PIN line
 
     // constructor for the ClientNote class
     public ClientNote(int x, int y, int width, int height, String color, String message) {
@@ -30,6 +30,12 @@ public class CommandBuilder {
         return sb.toString();
     }
 
+    // This method is used to construct one page of a full GET.
+    // GET [CURSOR <cursor>] LIMIT <n>, the cursor comes from the last page's GET_MORE
+    public static String buildGetPage(String cursor, int limit) {
+        return cursor == null ? "GET LIMIT " + limit : "GET CURSOR " + cursor + " LIMIT " + limit;
+    }
+
     // This method is used to construct a PIN request.
     // PIN <x> <y>
     public static String buildPin(int x, int y) {
@@ -42,6 +48,12 @@ public class CommandBuilder {
         return String.format("UNPIN %d %d", x, y);
     }
 
+    // This method is used to construct a delta GET request.
+    // GET SINCE <version>
+    public static String buildGetSince(long version) {
+        return "GET SINCE " + version;
+    }
+
     // This method is used to construct a GET request for pins.
     public static String buildGetPins() {
         return "GET PINS";
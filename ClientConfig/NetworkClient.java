@@ -1,22 +1,42 @@
 
 /* This class handles the network connection to the server and is responsible for sending and receiving messages to and from the server. 
 * It's a helper class for the BulletinBoardClient class
+* With --binary it asks the server for the compact binary protocol (WireCodec, shared with the server)
+* and turns the frames back into the usual text lines, so the rest of the client is unchanged
+* With --compress it asks for deflated big replies (a full GET mostly) and inflates them the same way
+* With --board=<name> it switches to that one of the server's boards (USE) before anything else
 */
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 // handles the network connection to the server 
 public class NetworkClient {
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream rawOut; // under out, binary frames are written here
+    private WireCodec.Input in;
     private BulletinBoardClient gui;
     private Thread listenerThread;
     private volatile boolean isRunning = false;
 
+    // set from the command line (--binary), text protocol otherwise
+    public static boolean binaryRequested = false;
+    private volatile boolean binary = false; // the server agreed to binary frames
+    // set from the command line (--compress)
+    public static boolean compressRequested = false;
+    // set from the command line (--board=<name>), null stays on the server's default board
+    public static String boardRequested = null;
+    private List<String> colours = new ArrayList<>(); // from the handshake, binary frames use their positions
+
+    // a full GET of a big board is one frame
+    private static final int MAX_REPLY_FRAME = 512 * 1024 * 1024;
+
     // constructor in which we initialize the gui object
     public NetworkClient(BulletinBoardClient gui) {
         this.gui = gui;
@@ -33,11 +53,65 @@ public class NetworkClient {
         new Thread(() -> {
             try {
                 socket = new Socket(ip, port);
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                rawOut = new BufferedOutputStream(socket.getOutputStream());
+                out = new PrintWriter(rawOut, true);
+                in = new WireCodec.Input(socket.getInputStream());
+
+                // handshake: BOARD, NOTE, COLOURS lines, always text
+                List<String> handshake = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new IOException("Server closed the connection during the handshake");
+                    }
+                    handshake.add(line);
+                    if (line.startsWith("COLOURS")) {
+                        colours = new ArrayList<>(Arrays.asList(line.trim().split("\\s+")));
+                        colours.remove(0);
+                    }
+                }
+                if (boardRequested != null) {
+                    // the reply repeats BOARD / NOTE / COLOURS for the chosen board, which
+                    // replace the default board's ones (colours too, binary ids follow them)
+                    out.println("USE " + boardRequested);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.startsWith("ERROR")) {
+                            gui.log("Board " + boardRequested + ": " + line + ", staying on the default board.");
+                            break;
+                        }
+                        handshake.add(line);
+                        if (line.startsWith("COLOURS")) {
+                            colours = new ArrayList<>(Arrays.asList(line.trim().split("\\s+")));
+                            colours.remove(0);
+                        }
+                        if (line.startsWith("SUCCESS")) {
+                            break;
+                        }
+                    }
+                }
+                if (compressRequested) {
+                    // asked first and in text, the answer comes back before anything compressed
+                    out.println(WireCodec.COMPRESS);
+                    if (!WireCodec.COMPRESS_ACCEPTED.equals(in.readLine())) {
+                        gui.log("Server doesn't compress replies, continuing without.");
+                    }
+                }
+                binary = false;
+                if (binaryRequested) {
+                    // nothing else is sent until the answer is in, the server switches right after it
+                    out.println(WireCodec.NEGOTIATE);
+                    binary = WireCodec.ACCEPTED.equals(in.readLine());
+                    if (!binary) {
+                        gui.log("Server only speaks the text protocol, using text.");
+                    }
+                }
 
                 isRunning = true;
                 gui.onConnected();
+                for (String line : handshake) {
+                    deliver(line);
+                }
 
                 // start listener thread for server messages
                 startListener();
@@ -82,18 +156,53 @@ public class NetworkClient {
         if (!silent) {
             gui.log("C->S: " + request);
         }
-        out.println(request);
+        if (!binary) {
+            out.println(request);
+            return;
+        }
+        // Swing thread and the timer both send, frames must not interleave
+        synchronized (this) {
+            try {
+                WireCodec.writeFrame(rawOut, WireCodec.encodeCommand(request, colours));
+                rawOut.flush();
+            } catch (IOException e) {
+                gui.log("Send failed: " + e.getMessage());
+            }
+        }
     }
 
     // starts a listener thread to receive messages from the server
     private void startListener() {
         listenerThread = new Thread(() -> {
             try { // try to read messages from the server
-                String line;
-                while (isRunning && (line = in.readLine()) != null) {
-                    gui.log("S->C: " + line);
+                if (binary) {
+                    byte[] frame;
+                    List<String> lines = new ArrayList<>();
+                    while (isRunning && (frame = in.readFrame(MAX_REPLY_FRAME)) != null) {
+                        lines.clear();
+                        WireCodec.decodeReply(frame, colours, lines);
+                        for (String line : lines) {
+                            deliver(line);
+                        }
+                    }
+                } else {
+                    String line;
+                    List<String> lines = new ArrayList<>();
+                    while (isRunning && (line = in.readLine()) != null) {
+                        if (!line.startsWith(WireCodec.DEFLATE_LINE)) {
+                            deliver(line);
+                            continue;
+                        }
+                        // DEFLATE <n>: n bytes of compressed reply lines follow
+                        int length = Integer.parseInt(line.substring(WireCodec.DEFLATE_LINE.length()).trim());
+                        lines.clear();
+                        WireCodec.inflateLines(in.readBytes(length), lines);
+                        for (String l : lines) {
+                            deliver(l);
+                        }
+                    }
                 }
-            } catch (IOException e) { // catch any IO exceptions
+            } catch (IOException | IllegalArgumentException e) { // catch any IO exceptions, or a frame we can't read
                 if (isRunning) {
                     gui.log("Connection lost: " + e.getMessage());
                     gui.onDisconnected();
@@ -103,6 +212,16 @@ public class NetworkClient {
         listenerThread.start();
     }
 
+    // one line from the server, whichever protocol it came in
+    private void deliver(String line) {
+        // pushed board changes (after SUBSCRIBE) skip the log and go straight to the board
+        if (line.startsWith("EVENT ")) {
+            gui.onServerEvent(line);
+        } else {
+            gui.log("S->C: " + line);
+        }
+    }
+
     // returns true if the client is connected to the server
     public boolean isConnected() {
         return socket != null && !socket.isClosed() && isRunning;
@@ -1,5 +1,7 @@
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /* Initialize Server startup and also configuring initial handshaking
 * This will serve as main server class.
@@ -7,22 +9,17 @@ import java.util.*;
 *   - First setting up board requirements
 *    - Parsing command arguments
 *   - Receiving/accepting client connections
-*   - Creating only one thread per client
+*   - Creating only one thread per client (or handing clients to NioServer with --nio)
+*   - Optionally running those threads as virtual threads (--virtual) with a
+*     cap on concurrent connections (--max-connections) and accept backlog (--backlog)
+*   - Optionally loading the board from, and logging it to, a data directory (--data)
+*   - Optionally hosting more named boards next to the default one (--boards, see Boards)
 */
 
 public class BBoard {
 
-    // This is the initial set up of board
-    // Public chosen to allow further accessibility from other classes
-    // ClientHandler/ ProtocolParser (upcoming) and static chosen to be shared
-    // amongst threads
-    public static int BOARD_WIDTH; // board width set
-    public static int BOARD_HEIGHT; // board height set
-    public static int NOTE_WIDTH; // note width set
-    public static int NOTE_HEIGHT; // note height set
-    public static boolean configured = false; // Tracks if board has been resized
-
-    public static Set<String> VALID_COLOURS = new HashSet<>(); // initializing string set for colours
+    // startup options given as --name or --name=value, kept apart from the positional arguments
+    private static Map<String, String> options = new HashMap<>();
 
     // ENTRY POINT
     public static void main(String[] args) {
@@ -33,37 +30,94 @@ public class BBoard {
          * - args[2] = board height
          * - args[3] = note width
          * - args[4] = note height
+         * These set up the default board. Options (--nio[=loops], --virtual,
+         * --max-connections=n, --backlog=n, --data=dir, --boards=specs) may appear
+         * anywhere and are removed first
          */
+        args = parseOptions(args);
         if (args.length < 6) {
-            System.err.println("Required: java BBoard <port> <board_w> <board_h> <note_w> <note_h> <colours>");
+            System.err.println("Required: java BBoard [options] <port> <board_w> <board_h> <note_w> <note_h> <colours>");
             System.exit(1);
         }
         try {
             // Parses the numeric arguments, also includes a cacth in event of invalid entry
             int port = Integer.parseInt(args[0]);
 
-            BOARD_WIDTH = Integer.parseInt(args[1]);
-            BOARD_HEIGHT = Integer.parseInt(args[2]);
-            NOTE_WIDTH = Integer.parseInt(args[3]);
-            NOTE_HEIGHT = Integer.parseInt(args[4]);
+            int boardWidth = Integer.parseInt(args[1]);
+            int boardHeight = Integer.parseInt(args[2]);
+            int noteWidth = Integer.parseInt(args[3]);
+            int noteHeight = Integer.parseInt(args[4]);
+
+            // last set of arguemnts are for colours
+            List<String> colours = Arrays.asList(args).subList(5, args.length);
+            Boards.add(new Board(Boards.DEFAULT, boardWidth, boardHeight, noteWidth, noteHeight, colours));
+
+            // more boards, plain names copy the default board's dimensions and colours
+            if (options.containsKey("boards")) {
+                for (Board board : Boards.parse(options.get("boards"), boardWidth, boardHeight,
+                        noteWidth, noteHeight, colours)) {
+                    Boards.add(board);
+                }
+            }
+
+            // persistence: replay the data directory before taking any clients. The default
+            // board lives in the directory itself, every other one in a subdirectory
+            if (options.containsKey("data")) {
+                Path data = Paths.get(options.get("data"));
+                for (Board board : Boards.all()) {
+                    long start = System.nanoTime();
+                    Path dir = board.name.equals(Boards.DEFAULT) ? data : data.resolve(board.name);
+                    board.persistTo(new WriteAheadLog(dir));
+                    System.out.println("Recovered board " + board.name + " from " + dir + " in "
+                            + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+                // a clean stop leaves just a snapshot, so the next start reads a single file
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    for (Board board : Boards.all()) {
+                        board.checkpoint();
+                    }
+                }, "checkpoint"));
+            }
 
-            // last set of arguemnts are for colours. will standardize colours to lowercase
-            // for easier comparisons
-            for (int i = 5; i < args.length; i++) {
-                VALID_COLOURS.add(args[i].toLowerCase());
+            // non-blocking mode: a few selector loops instead of one thread per client
+            if (options.containsKey("nio")) {
+                String loops = options.get("nio");
+                int loopCount = loops.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(loops);
+                new NioServer(port, loopCount).run();
+                return;
             }
 
+            // admission control: once maxConnections clients are being served we stop
+            // accepting, further clients wait in the (bounded) listen backlog
+            int backlog = Integer.parseInt(options.getOrDefault("backlog", "50"));
+            int maxConnections = Integer.parseInt(options.getOrDefault("max-connections", "" + Integer.MAX_VALUE));
+            Semaphore admission = new Semaphore(maxConnections);
+
+            // virtual threads are cheap enough to keep one per idle polling client
+            boolean virtual = options.containsKey("virtual");
+            ThreadFactory threads = virtual
+                    ? Thread.ofVirtual().name("client-", 0).factory()
+                    : Thread.ofPlatform().name("client-", 0).factory();
+
             // Creating a server socket and listen for clients
-            ServerSocket serverSocket = new ServerSocket(port);
-            System.out.println("Serving running on port " + port);
+            ServerSocket serverSocket = new ServerSocket(port, backlog);
+            System.out.println("Serving running on port " + port + (virtual ? " (virtual threads)" : "")
+                    + ", boards: " + String.join(" ", Boards.all().stream().map(b -> b.name).toList()));
 
             // accept loop
             while (true) {
+                admission.acquire(); // wait for a free slot before taking the next client
                 Socket clientSocket = serverSocket.accept(); // barred until client connetcs
 
                 // create new thread for client- this is the handshaking starter also
                 ClientHandler handler = new ClientHandler(clientSocket);
-                handler.start();
+                threads.newThread(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        admission.release();
+                    }
+                }).start();
             }
         } catch (Exception e) {
             // end server if any fatal startup error occurs
@@ -71,12 +125,22 @@ public class BBoard {
         }
     }
 
-    public static synchronized void updateDimensions(int w, int h, int nw, int nh) {
-        BOARD_WIDTH = w;
-        BOARD_HEIGHT = h;
-        NOTE_WIDTH = nw;
-        NOTE_HEIGHT = nh;
-        configured = true;
+    // pulls --name[=value] options out of args and returns the remaining positional ones
+    private static String[] parseOptions(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional.toArray(new String[0]);
     }
 
 }
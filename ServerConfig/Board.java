@@ -1,155 +1,1044 @@
+import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /*This will be the file in charge of the authorative board state.
 Responsible for ensuring state-modifying operations are synchorized
+Uses a java.util.concurrent lock rather than synchronized so virtual threads
+waiting on the board don't pin their carrier thread
+Reads (GET, GET PINS) share the lock so polling clients run in parallel,
+mutations (POST/PIN/UNPIN/SHAKE/CLEAR/RESIZE) still take it exclusively
+Every successful mutation bumps the version; readers of the whole board get an
+immutable BoardSnapshot for the current version, built once and shared
+Mutations are also written to a bounded ChangeLog so GET SINCE can send deltas,
+and pushed to SUBSCRIBEd connections through the EventHub
+Every version is described by exactly one change line, so clients can drop
+duplicates and spot gaps just by comparing versions
+With a WriteAheadLog attached (--data=<dir>) every mutation is also logged, and only
+acknowledged once its record is on disk
+A server can host several named boards (see Boards), each one with its own dimensions,
+colours, lock, indexes and STATS counters, so traffic on one never waits for another
+Notes live in a NoteStore (primitive columns, messages off heap) and every index
+refers to a note by its slot there, so a full board is a few arrays, not objects
 */
 
 public class Board {
 
-    private List<Note> notes = new ArrayList<>();
+    // what clients pick it by (USE <name>), also its data subdirectory with --data
+    public final String name;
 
-    // POST, ensuring atomicity
-    public synchronized String post(int x, int y, String colour, String message) {
+    // dimensions, guarded by the lock like the notes since RESIZE changes them
+    private int boardWidth;
+    private int boardHeight;
+    private int noteWidth;
+    private int noteHeight;
+    private boolean configured = false; // Tracks if board has been resized
+
+    // colours given when the board was created, stored lowercase
+    private final Set<String> validColours;
+    // same colours as small ids, for NoteStore (plus any a restore brings back)
+    final Colours colours = new Colours();
+    // the COLOURS handshake line in order, binary frames refer to colours by position in it
+    private final List<String> handshakeColours;
+    private final Map<String, Integer> wireColourIndex;
+
+    // this board's share of the STATS command counters
+    private final AtomicLongArray commands = new AtomicLongArray(Metrics.COMMANDS.length);
+    private final AtomicLongArray errors = new AtomicLongArray(Metrics.COMMANDS.length);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final StampedLock lock = new StampedLock();
+    private long writeLockedAt; // when the current write lock was taken, for Metrics
+
+    // fixed error replies, built once instead of on every rejected command
+    private static final String COLOUR_NOT_SUPPORTED = error("COLOUR_NOT_SUPPORTED", "Colour not found in list");
+    private static final String NOTE_OUT_OF_BOUNDS = error("OUT_OF_BOUNDS", "Note out of bounds");
+    private static final String COMPLETE_OVERLAP = error("COMPLETE_OVERLAP", "Note completely overlaps");
+    private static final String PIN_OUT_OF_BOUNDS = error("OUT_OF_BOUNDS", "Pin out of bounds");
+    private static final String NO_NOTE_AT_COORDINATE = error("NO_NOTE_AT_COORDINATE", "No note at coordinate");
+    private static final String PIN_NOT_FOUND = error("PIN_NOT_FOUND", "No pin at coordinate");
+    private static final String INVALID_COORDINATES = error("OUT_OF_BOUNDS", "Invalid coordinates");
+    // the change that hit a write failure stays on the board (and was already pushed to
+    // subscribers) but a restart may lose it; every change after that is refused
+    private static final String PERSISTENCE_FAILED = error("PERSISTENCE_FAILED",
+            "Change made but not saved, it may be lost on restart");
+    private static final String LOG_FAILED = error("PERSISTENCE_FAILED", "Changes can no longer be saved, nothing was changed");
+    private static final String MESSAGE_TOO_LONG = error("MESSAGE_TOO_LONG",
+            "Message over " + MessageArena.MAX_MESSAGE_BYTES + " bytes");
+    private static final String INVALID_MESSAGE = error("INVALID_FORMAT", "Message must be one non empty line");
+
+    // durable log of mutations, null when the server runs in memory only
+    private WriteAheadLog wal;
+
+    // bumped by every mutation that changes what a GET would return
+    private long version = 0;
+
+    // recent mutations by version, for GET SINCE
+    private static final int CHANGE_LOG_CAPACITY = 4096;
+    private final ChangeLog changes = new ChangeLog(CHANGE_LOG_CAPACITY);
+
+    // a shake removing more notes than this is sent as RESYNC instead of one huge line
+    private static final int MAX_REMOVE_EVENT = 1024;
+
+    // a shake removing at least this many notes, and three times as many as it leaves,
+    // rebuilds the indexes from the survivors (in parallel) instead of updating them
+    // note by note (adding a note to an index costs about what removing one does)
+    private static final int BULK_MIN_NOTES = 50_000;
+
+    // SUBSCRIBEd connections, told about every mutation as it happens
+    private final EventHub events = new EventHub();
+
+    // latest published snapshot, rebuilt lazily by the first reader after a mutation
+    private volatile BoardSnapshot snapshot;
+
+    // total pins across all notes, lets GET PINS answer an empty board optimistically
+    private int pinCount = 0;
+
+    // pin coordinate -> notes pinned there, so UNPIN and GET PINS only touch pinned notes
+    private PinIndex pinIndex = new PinIndex();
 
-        // Checks if note is within bounds
-        if (x < 0 || y < 0 ||
-                x + BBoard.NOTE_WIDTH > BBoard.BOARD_WIDTH ||
-                y + BBoard.NOTE_HEIGHT > BBoard.BOARD_HEIGHT) {
+    // the notes themselves, as primitive columns with messages off heap. Indexes
+    // refer to a note by its slot in here
+    private NoteStore store = new NoteStore();
 
-            return error("OUT_OF_BOUNDS", "Note out of bounds");
+    // spatial index over notes, cells sized from the current note dimensions so
+    // PIN / contains= / POST overlap only look at notes near the coordinate
+    private GridIndex grid;
+
+    // case-folded trigrams of every message, so refersTo= doesn't scan every note
+    private TrigramIndex text = new TrigramIndex();
+
+    // notes of each colour in post order (colour= only visits its own)
+    private ColourIndex byColour = new ColourIndex();
+
+    // after a restore the grid, text and colour indexes are built on a background thread
+    // so startup doesn't wait for them. Until then lookups scan the notes, and mutations
+    // only remember which slots came and went (true = added). The store doesn't reuse
+    // slots meanwhile, so a slot names one note. null once all are live
+    private Map<Integer, Boolean> unindexed;
+    private boolean unindexedCleared = false; // a CLEAR/RESIZE also wiped the restored notes
+    private CountDownLatch gridReady = new CountDownLatch(0); // the grid goes live first
+
+    public Board(String name, int boardWidth, int boardHeight, int noteWidth, int noteHeight,
+            Collection<String> colourNames) {
+        this.name = name;
+        this.boardWidth = boardWidth;
+        this.boardHeight = boardHeight;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        this.grid = new GridIndex(noteWidth, noteHeight);
+
+        // will standardize colours to lowercase for easier comparisons
+        Set<String> valid = new HashSet<>();
+        for (String c : colourNames) {
+            valid.add(c.toLowerCase());
+            colours.register(c.toLowerCase());
+        }
+        validColours = Collections.unmodifiableSet(valid);
+        List<String> sorted = new ArrayList<>(valid);
+        Collections.sort(sorted);
+        handshakeColours = Collections.unmodifiableList(sorted);
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            index.put(sorted.get(i), i);
         }
+        wireColourIndex = Collections.unmodifiableMap(index);
+    }
+
+    // lowercase colours POST and colour= accept
+    public Set<String> validColours() {
+        return validColours;
+    }
+
+    // the COLOURS line, in order. Binary frames refer to colours by position in it
+    public List<String> handshakeColours() {
+        return handshakeColours;
+    }
+
+    // colour name -> position in the COLOURS line
+    public Map<String, Integer> wireColourIndex() {
+        return wireColourIndex;
+    }
 
-        Note newNote = new Note(x, y, BBoard.NOTE_WIDTH, BBoard.NOTE_HEIGHT, colour, message);
-        // check for note overlap
-        for (Note n : notes) {
-            if (n.x == x && n.y == y) {
-                return error("COMPLETE_OVERLAP", "Note completely overlaps");
+    // BOARD / NOTE / COLOURS lines, sent on connect (default board) and after USE
+    public List<String> handshakeLines() {
+        long stamp = readLock();
+        try {
+            return Arrays.asList(
+                    "BOARD " + boardWidth + " " + boardHeight,
+                    "NOTE " + noteWidth + " " + noteHeight,
+                    "COLOURS " + String.join(" ", handshakeColours));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // POST, ensuring atomicity
+    public String post(int x, int y, String colour, String message) {
+        if (logFailed()) {
+            return LOG_FAILED;
+        }
+        return durable(postLocked(x, y, colour, message));
+    }
+
+    private String postLocked(int x, int y, String colour, String message) {
+        long stamp = writeLock();
+        try {
+            // Checks if note is within bounds
+            if (x < 0 || y < 0 ||
+                    x + noteWidth > boardWidth ||
+                    y + noteHeight > boardHeight) {
+
+                return NOTE_OUT_OF_BOUNDS;
+            }
+
+            int colourId = colours.id(colour);
+            if (colourId < 0) {
+                return COLOUR_NOT_SUPPORTED;
+            }
+
+            // check for note overlap
+            if (noteAnchoredAt(x, y) >= 0) {
+                return COMPLETE_OVERLAP;
+            }
+            // every GET, EVENT and DELTA line carries the message as is, so a line break
+            // would let one client forge lines in another's replies (binary POST has no
+            // line framing to stop it)
+            if (message.isEmpty() || message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0) {
+                return INVALID_MESSAGE;
             }
+            if (!MessageArena.fits(message)) {
+                return MESSAGE_TOO_LONG;
+            }
+            int slot = store.add(x, y, colourId, message);
+            indexAdd(slot);
+            if (wal != null) {
+                wal.appendPost(x, y, colour, message);
+            }
+            record("POST " + x + " " + y + " " + colour + " " + message);
+            return "SUCCESS POST_IT_POSTED";
+        } finally {
+            unlockWrite(stamp);
         }
-        notes.add(newNote);
-        return "SUCCESS POST_IT_POSTED";
     }
 
     // Pin, ensuring atomicity
     // also same idea/ logic as post but enforcing parameters and cheking bounds
-    public synchronized String pin(int x, int y) {
-
-        // Checks if pin is within bounds
-        if (x < 0 || y < 0 || x >= BBoard.BOARD_WIDTH || y >= BBoard.BOARD_HEIGHT) {
-            return error("OUT_OF_BOUNDS", "Pin out of bounds");
+    public String pin(int x, int y) {
+        if (logFailed()) {
+            return LOG_FAILED;
         }
+        return durable(pinLocked(x, y));
+    }
 
-        boolean found = false;
+    private String pinLocked(int x, int y) {
+        long stamp = writeLock();
+        try {
+            // Checks if pin is within bounds
+            if (x < 0 || y < 0 || x >= boardWidth || y >= boardHeight) {
+                return PIN_OUT_OF_BOUNDS;
+            }
+
+            int pinned = 0;
 
-        // checks if a pin is in a note
-        for (Note n : notes) {
-            if (n.contains(x, y)) {
-                n.addPin(new Pin(x, y));
-                found = true;
+            // checks if a pin is in a note, grid only hands back notes containing (x, y)
+            int[] covering = notesAt(x, y);
+            for (int slot : covering) {
+                store.addPin(slot, x, y);
+                pinCount++;
+                pinned++;
             }
-        }
-        // send out something saying no coordinets there
-        if (!found) {
-            return error("NO_NOTE_AT_COORDINATE", "No note at coordinate");
-        }
+            // send out something saying no coordinets there
+            if (pinned == 0) {
+                return NO_NOTE_AT_COORDINATE;
+            }
+            pinIndex.set(x, y, covering); // every covering note is pinned here now
+            if (wal != null) {
+                wal.appendPin(x, y);
+            }
+            record("PIN " + x + " " + y + " " + pinned);
 
-        return "SUCCESS PINNED";
+            return "SUCCESS PINNED";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // Unpin, ensuring atomicity
     // a bit more straightforward than pin
-    public synchronized String unpin(int x, int y) {
+    public String unpin(int x, int y) {
+        if (logFailed()) {
+            return LOG_FAILED;
+        }
+        return durable(unpinLocked(x, y));
+    }
 
-        for (Note n : notes) {
-            if (n.hasPinAt(x, y)) {
-                n.removePinAt(x, y);
-                return "SUCCESS UNPINNED";
+    private String unpinLocked(int x, int y) {
+        long stamp = writeLock();
+        try {
+            int[] pinnedHere = pinIndex.notesAt(x, y);
+            if (pinnedHere == null) {
+                return PIN_NOT_FOUND;
             }
+            // one note per UNPIN, the first posted of those pinned here
+            int slot = pinnedHere[0];
+            int removed = store.removePinAt(slot, x, y);
+            pinCount -= removed;
+            pinIndex.remove(x, y, slot);
+            if (wal != null) {
+                wal.appendUnpin(x, y);
+            }
+            record("UNPIN " + x + " " + y + " " + removed);
+            return "SUCCESS UNPINNED";
+        } finally {
+            unlockWrite(stamp);
         }
-
-        return error("PIN_NOT_FOUND", "No pin at coordinate");
     }
 
     // Shake, client has to see pre or post state. Also atomic opertaion.. they all
     // are here
-    public synchronized String shake() {
-        notes.removeIf(n -> !n.isPinned());
-        return "SUCCESS SHAKE_COMPLETE";
+    public String shake() {
+        if (logFailed()) {
+            return LOG_FAILED;
+        }
+        return durable(shakeLocked());
+    }
+
+    private String shakeLocked() {
+        long stamp = writeLock();
+        try {
+            // only the unpinned notes, the store keeps that set as pins come and go
+            int[] doomed = store.unpinnedSlots();
+            int removed = doomed.length;
+            // one line for the whole shake: REMOVE x1 y1 x2 y2 ... in post order
+            StringBuilder event = new StringBuilder("REMOVE");
+            if (removed <= MAX_REMOVE_EVENT) {
+                store.sortByPostOrder(doomed, removed);
+                for (int slot : doomed) {
+                    event.append(" ").append(store.x(slot)).append(" ").append(store.y(slot));
+                }
+            }
+            if (removed >= BULK_MIN_NOTES && removed >= 3 * (store.size() - removed) && unindexed == null) {
+                // most of a big board goes: cheaper to index the survivors afresh
+                for (int slot : doomed) {
+                    store.remove(slot); // the slot goes to a later POST
+                }
+                rebuildIndexes();
+            } else {
+                for (int slot : doomed) {
+                    indexRemove(slot);
+                    store.remove(slot);
+                }
+            }
+            if (removed > 0) {
+                store.compactIfWasteful();
+            }
+            if (wal != null && removed > 0) {
+                wal.appendShake();
+            }
+            if (removed > MAX_REMOVE_EVENT) {
+                // too big to describe line by line, everyone fetches the board again
+                record("RESYNC");
+            } else if (removed > 0) {
+                record(event.toString());
+            }
+            return "SUCCESS SHAKE_COMPLETE";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // CLEAR- clears the board. same pre or post state clients will see, atomic
     // operation
-    public synchronized String clear() {
-        notes.clear();
-        return "SUCCESS BOARD_CLEARED";
+    public String clear() {
+        if (logFailed()) {
+            return LOG_FAILED;
+        }
+        return durable(clearLocked());
+    }
+
+    private String clearLocked() {
+        long stamp = writeLock();
+        try {
+            store.clear();
+            indexClear();
+            pinCount = 0;
+            pinIndex.clear();
+            if (wal != null) {
+                wal.appendClear();
+            }
+            record("CLEAR");
+            return "SUCCESS BOARD_CLEARED";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // GET PINS
-    public synchronized String getPins() {
+    public String getPins() {
+        // cheap check first: an optimistic read of the counter needs no locking at all
+        long optimistic = lock.tryOptimisticRead();
+        boolean empty = pinCount == 0;
+        if (optimistic != 0 && lock.validate(optimistic) && empty) {
+            return "SUCCESS PINS EMPTY";
+        }
 
-        StringBuilder sb = new StringBuilder();
-        boolean found = false;
+        long stamp = readLock();
+        try {
+            if (pinCount == 0) {
+                return "SUCCESS PINS EMPTY";
+            }
+            StringBuilder sb = new StringBuilder();
 
-        // gets pin at coordinates
-        for (Note n : notes) {
-            for (Pin p : n.getPins()) {
-                sb.append("PIN ").append(p.x).append(" ").append(p.y).append("\n");
-                found = true;
+            // one line per pin, from the pin index so unpinned notes cost nothing.
+            // Sorted by coordinate; a spot pinned on two notes (or twice) is listed each time
+            for (long p : pinIndex.coordinates()) {
+                int x = Pin.x(p);
+                int y = Pin.y(p);
+                int count = 0;
+                for (int slot : pinIndex.notesAt(x, y)) {
+                    count += store.pinsAt(slot, x, y);
+                }
+                for (int i = 0; i < count; i++) {
+                    sb.append("PIN ").append(x).append(" ").append(y).append("\n");
+                }
             }
+
+            return sb.toString().trim(); // gets rid of very last new line
+        } finally {
+            lock.unlockRead(stamp);
         }
+    }
 
-        if (!found) {
-            return "SUCCESS PINS EMPTY";
+    // immutable view of the whole board at the current version
+    public BoardSnapshot snapshot() {
+        // fast path: nothing changed since the last snapshot was published
+        long optimistic = lock.tryOptimisticRead();
+        long v = version;
+        BoardSnapshot s = snapshot;
+        if (s != null && s.version == v && lock.validate(optimistic)) {
+            return s;
         }
 
-        return sb.toString().trim(); // gets rid of very last new line
+        long stamp = readLock();
+        try {
+            s = snapshot;
+            if (s == null || s.version != version) {
+                s = newSnapshot();
+                snapshot = s;
+            }
+            return s;
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     // GET with filters (colour, contains, refersTo)
-    public synchronized String getFilteredNotes(String colour, int[] contains, String refersTo) {
+    public String getFilteredNotes(String colour, int[] contains, String refersTo) {
+        return getFilteredNotes(colour, contains, refersTo, null, 0);
+    }
+
+    // the same, one page of it: 'after' a decoded cursor (see cursor()) or null for the
+    // first page, 'limit' the most notes to send, 0 for all of them
+    public String getFilteredNotes(String colour, int[] contains, String refersTo, long[] after, int limit) {
+        // same text as a full GET, of a snapshot holding only the matches
+        BoardSnapshot matches = listing(colour, contains, refersTo, after, limit);
+        return matches == null ? INVALID_COORDINATES : matches.fullGetResponse();
+    }
 
-        // Validate 'contains' coordinates if present
-        if (contains != null) {
-            int cx = contains[0];
-            int cy = contains[1];
-            if (cx < 0 || cx >= BBoard.BOARD_WIDTH || cy < 0 || cy >= BBoard.BOARD_HEIGHT) {
-                return error("OUT_OF_BOUNDS", "Invalid coordinates");
+    // the snapshot a GET is answered from, for servers that stream it (see
+    // BoardSnapshot.textChunks). A plain GET (the polling one) gets the shared one,
+    // a filtered or paged GET a snapshot of just its matches. null if 'contains' is off the board
+    public BoardSnapshot listing(String colour, int[] contains, String refersTo, long[] after, int limit) {
+        if (colour == null && contains == null && refersTo == null && after == null && limit == 0) {
+            return snapshot();
+        }
+        return filteredSnapshot(colour, contains, refersTo, after, limit);
+    }
+
+    // same GET for a binary connection: a NOTES frame, or a TEXT frame with the error
+    public byte[] getFilteredFrame(String colour, int[] contains, String refersTo, long[] after, int limit) {
+        BoardSnapshot matches = listing(colour, contains, refersTo, after, limit);
+        return matches == null ? WireCodec.text(INVALID_COORDINATES) : matches.fullGetFrame();
+    }
+
+    // the notes matching every given filter, frozen in post order with the current
+    // header, so serialising them happens after the read lock is gone. With a page
+    // (after = a decoded cursor, limit > 0) only the first 'limit' matches posted after
+    // the cursor's note, plus the cursor to the next page if more follow. null if the
+    // 'contains' coordinates are off the board
+    private BoardSnapshot filteredSnapshot(String colour, int[] contains, String refersTo, long[] after, int limit) {
+        long stamp = readLock();
+        try {
+            if (contains != null && (contains[0] < 0 || contains[0] >= boardWidth
+                    || contains[1] < 0 || contains[1] >= boardHeight)) {
+                return null;
+            }
+            int[] found = new int[16];
+            int count = 0;
+            // one more than the page holds tells whether another page follows
+            int wanted = limit > 0 ? limit + 1 : Integer.MAX_VALUE;
+
+            // refersTo= is matched case-insensitively, fold the query once here
+            String foldedQuery = (refersTo != null) ? refersTo.toLowerCase() : null;
+            byte[] queryBytes = (foldedQuery != null) ? foldedQuery.getBytes(StandardCharsets.UTF_8) : null;
+
+            // colour compared by id, -1 (never configured) simply matches nothing
+            int colourId = (colour != null) ? colours.id(colour) : -1;
+
+            // a page resumes after the cursor's note: matches posted later. When that note
+            // is still on the board the walk starts right after it, otherwise from the start
+            long afterSeq = (after != null) ? after[0] : -1;
+            int afterSlot = (after != null && store.holds((int) after[1], after[0])) ? (int) after[1] : -1;
+
+            // the cheapest way in (see QueryPlan): the grid cell or the trigram search hand
+            // over their notes in post order, the colour list or every note are walked
+            QueryPlan plan = plan(colour, colourId, contains, foldedQuery, limit);
+            List<IntSet> postings = plan.postings;
+            int[] candidates = null;
+            if (plan.path == QueryPlan.NONE) {
+                candidates = new int[0];
+            } else if (plan.path == QueryPlan.GRID) {
+                candidates = grid.notesAt(contains[0], contains[1], store);
+            } else if (plan.path == QueryPlan.TEXT) {
+                candidates = text.search(postings, queryBytes, store);
+                queryBytes = null; // every one already contains the query
+                postings = null;
+            }
+
+            if (candidates != null) {
+                for (int i = firstAfter(candidates, afterSeq); i < candidates.length && count < wanted; i++) {
+                    int slot = candidates[i];
+                    if (!matches(slot, colour, colourId, contains, queryBytes, postings)) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = slot;
+                }
+            } else {
+                boolean byColourList = plan.path == QueryPlan.COLOUR;
+                int slot;
+                if (afterSlot >= 0 && (!byColourList || store.colourId(afterSlot) == colourId)) {
+                    slot = byColourList ? byColour.next(afterSlot) : store.next(afterSlot);
+                } else {
+                    slot = byColourList ? byColour.first(colourId) : store.first();
+                    while (slot >= 0 && store.seq(slot) <= afterSeq) {
+                        slot = byColourList ? byColour.next(slot) : store.next(slot);
+                    }
+                }
+                for (; slot >= 0 && count < wanted; slot = byColourList ? byColour.next(slot) : store.next(slot)) {
+                    if (!matches(slot, colour, colourId, contains, queryBytes, postings)) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = slot;
+                }
+            }
+
+            String nextCursor = null;
+            if (count > limit && limit > 0) {
+                count = limit;
+                nextCursor = cursorFor(found[count - 1]);
             }
+            return new BoardSnapshot(version, boardWidth, boardHeight, noteWidth, noteHeight, configured,
+                    store.freeze(found, count), colours, wireColourIndex, false, nextCursor);
+        } finally {
+            lock.unlockRead(stamp);
         }
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("SUCCESS GET ").append(BBoard.BOARD_WIDTH).append(" ").append(BBoard.BOARD_HEIGHT).append(" ")
-                .append(BBoard.NOTE_WIDTH).append(" ").append(BBoard.NOTE_HEIGHT).append(" ")
-                .append(BBoard.configured).append("\n"); // Header with dimensions and configured flag
-        boolean found = false;
+    // every GET filter on one note. refersTo= intersects with the query's trigram
+    // postings first (when the index has them), the message is only searched after
+    private boolean matches(int slot, String colour, int colourId, int[] contains, byte[] queryBytes,
+            List<IntSet> postings) {
+        if (colour != null && store.colourId(slot) != colourId) {
+            return false;
+        }
+        if (contains != null && !covers(slot, contains[0], contains[1])) {
+            return false;
+        }
+        if (postings != null && !TrigramIndex.inAll(postings, slot)) {
+            return false;
+        }
+        return queryBytes == null || store.messageContains(slot, queryBytes);
+    }
 
-        for (Note n : notes) {
-            if (colour != null && !n.getColour().equals(colour)) {
-                continue;
+    // under the read lock: what each index says about these filters. While the indexes
+    // are built after a restore only a scan is possible (plus the grid once it is live)
+    private QueryPlan plan(String colour, int colourId, int[] contains, String foldedQuery, int limit) {
+        boolean indexed = unindexed == null;
+        long colourRows = -1;
+        if (colour != null && colourId < 0) {
+            colourRows = 0; // never configured, matches nothing
+        } else if (colour != null && indexed) {
+            colourRows = byColour.count(colourId);
+        }
+        long gridRows = (contains != null && gridBuilt()) ? grid.cellSize(contains[0], contains[1]) : -1;
+        // looking up the postings costs a map lookup per trigram; not worth it when the grid
+        // cell (or the colour) already has fewer notes than that to check
+        long known = (gridRows >= 0 && colourRows >= 0) ? Math.min(gridRows, colourRows) : Math.max(gridRows, colourRows);
+        List<IntSet> postings = null;
+        if (foldedQuery != null && indexed && (known < 0 || known > foldedQuery.length() - 2)) {
+            postings = text.postings(foldedQuery);
+        }
+        return new QueryPlan(store.size(), colourRows, gridRows, postings, colour != null, contains != null,
+                foldedQuery != null, limit);
+    }
+
+    // EXPLAIN GET ...: the plan the same GET would run with right now, see QueryPlan
+    public String explain(String colour, int[] contains, String refersTo, long[] after, int limit) {
+        if (colour == null && contains == null && refersTo == null && after == null && limit == 0) {
+            // a plain GET never plans, it is the shared snapshot
+            return "SUCCESS EXPLAIN\nPLAN snapshot estimate=" + snapshot().notes.size + "\nSUCCESS EXPLAIN_COMPLETE";
+        }
+        long stamp = readLock();
+        try {
+            if (contains != null && (contains[0] < 0 || contains[0] >= boardWidth
+                    || contains[1] < 0 || contains[1] >= boardHeight)) {
+                return INVALID_COORDINATES;
             }
-            if (contains != null && !n.contains(contains[0], contains[1])) {
-                continue;
+            String foldedQuery = (refersTo != null) ? refersTo.toLowerCase() : null;
+            int colourId = (colour != null) ? colours.id(colour) : -1;
+            StringBuilder sb = new StringBuilder();
+            plan(colour, colourId, contains, foldedQuery, limit).appendExplain(sb);
+            return sb.toString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // first index in 'slots' (post order) of a note posted after 'seq'
+    private int firstAfter(int[] slots, long seq) {
+        int low = 0;
+        int high = slots.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (store.seq(slots[mid]) <= seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
-            if (refersTo != null &&
-                    !n.getMessage().toLowerCase().contains(refersTo.toLowerCase())) {
-                continue;
+        }
+        return low;
+    }
+
+    // GET cursor for resuming after the note in 'slot': <epoch>-<seq>-<slot>, base 36.
+    // Seq orders the notes and never comes back, so removals and posts in between
+    // neither skip nor repeat a note; the slot lets the next page start right there
+    private String cursorFor(int slot) {
+        return Integer.toString(store.epoch(), 36) + "-" + Long.toString(store.seq(slot), 36) + "-"
+                + Integer.toString(slot, 36);
+    }
+
+    // a cursor from cursorFor() as {seq, slot}, null if it is malformed or from before
+    // the board was last restored (its notes are numbered afresh then)
+    public long[] cursor(String token) {
+        String[] parts = token.split("-", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            long epoch = Long.parseLong(parts[0], 36);
+            long seq = Long.parseLong(parts[1], 36);
+            long slot = Long.parseLong(parts[2], 36);
+            if (seq < 0 || slot < 0 || slot > Integer.MAX_VALUE) {
+                return null;
             }
-            sb.append(n.toProtocolString()).append("\n");
-            // Append pins for this note so client knows about them immediately
-            for (Pin p : n.getPins()) {
-                sb.append("PIN ").append(p.x).append(" ").append(p.y).append("\n");
+            long stamp = readLock();
+            try {
+                return epoch == store.epoch() ? new long[] {seq, slot} : null;
+            } finally {
+                lock.unlockRead(stamp);
             }
-            found = true;
+        } catch (NumberFormatException e) {
+            return null;
         }
+    }
+
+    // GET SINCE <version>, only what changed after the client's version
+    public String getChangesSince(long since) {
+        long stamp = readLock();
+        try {
+            // too old (or from before a restart), client has to fetch the whole board again
+            if (since > version || !changes.covers(since)) {
+                return "SUCCESS SINCE RESYNC " + version;
+            }
 
-        if (!found) {
-            // Even if empty, send complete so client knows to clear board
-            sb.append("SUCCESS GET_COMPLETE - No notes found");
+            StringBuilder sb = new StringBuilder();
+            sb.append("SUCCESS SINCE ").append(since).append(" ").append(version).append("\n");
+            changes.appendSince(since, sb);
+            sb.append("SUCCESS SINCE_COMPLETE");
             return sb.toString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // SUBSCRIBE: starts pushing "EVENT <version> <event>" lines to the subscriber.
+    // Returns the version the subscription starts after. Taken under the read lock
+    // so no mutation can slip in between (they publish under the write lock).
+    public long subscribe(EventHub.Subscriber subscriber) {
+        long stamp = readLock();
+        try {
+            events.add(subscriber);
+            return version;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void unsubscribe(EventHub.Subscriber subscriber) {
+        events.remove(subscriber);
+    }
+
+    // every mutation goes through here while holding the write lock: new version,
+    // one line in the change log, one pushed event
+    private void record(String event) {
+        version++;
+        if (event.equals("RESYNC")) {
+            changes.reset(version);
+        } else {
+            changes.append(version, event);
+        }
+        events.publish("EVENT " + version + " " + event);
+
+        // log segment is big enough, roll it over and snapshot this exact version
+        if (wal != null && wal.needsCompaction()) {
+            compactLocked();
+        }
+    }
+
+    // holding the write lock: hands a snapshot of this exact version to the WAL. Only
+    // the freeze happens here; the segment switch waits for the sync in durable()
+    private void compactLocked() {
+        snapshot = newSnapshot();
+        wal.compact(snapshot);
+    }
+
+    // under the lock: frozen copy of the current version
+    private BoardSnapshot newSnapshot() {
+        return new BoardSnapshot(version, boardWidth, boardHeight, noteWidth, noteHeight, configured, store.freeze(),
+                colours, wireColourIndex, true, null);
+    }
+
+    // on shutdown: snapshot whatever the log holds, so the next start only maps a file
+    public void checkpoint() {
+        if (wal == null) {
+            return;
+        }
+        long stamp = writeLock();
+        try {
+            if (wal.hasUnsnapshottedRecords()) {
+                compactLocked();
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        try {
+            wal.sync(); // switches segments and queues the snapshot
+        } catch (IOException e) {
+            e.printStackTrace(); // the log keeps every record, the next start replays it
+        }
+        wal.finishCompaction();
+    }
+
+    // once the WAL couldn't write a record, mutations are refused before they change anything
+    private boolean logFailed() {
+        return wal != null && wal.failed();
+    }
+
+    // with a WAL, only acknowledge a mutation once its record is on disk. Runs after
+    // the write lock is released so mutations queue up behind one shared force
+    private String durable(String reply) {
+        if (wal == null || !reply.startsWith("SUCCESS")) {
+            return reply;
+        }
+        try {
+            wal.sync();
+            return reply;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return PERSISTENCE_FAILED;
+        }
+    }
+
+    // loads whatever the data directory holds, from then on every mutation is logged there
+    public void persistTo(WriteAheadLog log) throws IOException {
+        log.recover(this);
+        wal = log;
+    }
+
+    // replaces the whole board with one loaded from a snapshot file (startup only)
+    public void restore(long restoredVersion, int w, int h, int nw, int nh, boolean wasConfigured,
+            NoteColumns restoredNotes) {
+        long stamp = writeLock();
+        try {
+            // dimensions saved in the snapshot, including whether a RESIZE had configured them
+            boardWidth = w;
+            boardHeight = h;
+            noteWidth = nw;
+            noteHeight = nh;
+            configured = wasConfigured;
+            store = NoteStore.of(restoredNotes); // note i is in slot i
+            store.setRecycling(false);
+            pinCount = 0;
+            pinIndex = new PinIndex();
+            for (int i = 0; i < restoredNotes.size; i++) {
+                long[] pins = restoredNotes.pins(i);
+                pinCount += pins.length;
+                pinIndex.add(i, pins); // in post order, like the grid
+            }
+            grid = new GridIndex(nw, nh);
+            text = new TrigramIndex();
+            byColour = new ColourIndex();
+            unindexed = new LinkedHashMap<>();
+            unindexedCleared = false;
+            gridReady = new CountDownLatch(1);
+            version = restoredVersion;
+            changes.reset(version);
+            snapshot = null;
+        } finally {
+            unlockWrite(stamp);
+        }
+        indexInBackground(restoredNotes, nw, nh); // immutable, nothing else changes it
+    }
+
+    // blocks until lookups stop scanning, e.g. before replaying a long WAL tail
+    public void awaitGrid() throws InterruptedException {
+        gridReady.await();
+    }
+
+    // builds the indexes for restored notes off the startup path: the grid first (every
+    // POST and PIN needs it), then the text and colour ones. Each is swapped in under the
+    // write lock along with whatever changed in the meantime
+    private void indexInBackground(NoteColumns restoredNotes, int noteWidth, int noteHeight) {
+        Thread indexer = new Thread(() -> {
+            GridIndex builtGrid = new GridIndex(noteWidth, noteHeight);
+            for (int i = 0; i < restoredNotes.size; i++) {
+                builtGrid.add(i, restoredNotes.x(i), restoredNotes.y(i));
+            }
+            long stamp = writeLock();
+            try {
+                if (unindexedCleared) {
+                    // restored notes are gone, and a RESIZE may have changed the cell size
+                    builtGrid = new GridIndex(this.noteWidth, this.noteHeight);
+                }
+                // map keeps post order, so cells stay in post order
+                for (Map.Entry<Integer, Boolean> change : unindexed.entrySet()) {
+                    int slot = change.getKey();
+                    if (change.getValue()) {
+                        builtGrid.add(slot, store.x(slot), store.y(slot));
+                    } else {
+                        // only restored notes are removed here, the rest cancel out
+                        builtGrid.remove(slot, restoredNotes.x(slot), restoredNotes.y(slot));
+                    }
+                }
+                grid = builtGrid;
+                gridReady.countDown();
+            } finally {
+                unlockWrite(stamp);
+            }
+
+            TrigramIndex builtText = new TrigramIndex();
+            ColourIndex builtColours = new ColourIndex();
+            for (int i = 0; i < restoredNotes.size; i++) {
+                builtText.add(i, restoredNotes.foldedMessage(i));
+                builtColours.add(i, restoredNotes.colourId(i));
+            }
+            stamp = writeLock();
+            try {
+                if (unindexedCleared) {
+                    builtText.clear();
+                    builtColours.clear();
+                }
+                for (Map.Entry<Integer, Boolean> change : unindexed.entrySet()) {
+                    int slot = change.getKey();
+                    if (change.getValue()) {
+                        builtText.add(slot, store.foldedMessage(slot));
+                        builtColours.add(slot, store.colourId(slot));
+                    } else {
+                        builtText.remove(slot, restoredNotes.foldedMessage(slot));
+                        builtColours.remove(slot, restoredNotes.colourId(slot));
+                    }
+                }
+                text = builtText;
+                byColour = builtColours;
+                unindexed = null;
+                store.setRecycling(true);
+            } finally {
+                unlockWrite(stamp);
+            }
+        }, "board-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // index upkeep, all called under the write lock. While the background build runs,
+    // the live grid (once there) is kept as usual and the rest is only remembered
+    private void indexAdd(int slot) {
+        if (gridBuilt()) {
+            grid.add(slot, store.x(slot), store.y(slot));
+        }
+        if (unindexed != null) {
+            unindexed.put(slot, true);
+            return;
+        }
+        text.add(slot, store.foldedMessage(slot));
+        byColour.add(slot, store.colourId(slot));
+    }
+
+    // before the note leaves the store
+    private void indexRemove(int slot) {
+        if (gridBuilt()) {
+            grid.remove(slot, store.x(slot), store.y(slot));
+        }
+        if (unindexed != null) {
+            // a slot is added and removed at most once, so added-then-removed cancels out
+            if (unindexed.remove(slot) == null) {
+                unindexed.put(slot, false);
+            }
+            return;
         }
+        text.remove(slot, store.foldedMessage(slot));
+        byColour.remove(slot, store.colourId(slot));
+    }
 
-        sb.append("SUCCESS GET_COMPLETE");
-        return sb.toString();
+    private void indexClear() {
+        if (gridBuilt()) {
+            grid.clear();
+        }
+        if (unindexed != null) {
+            unindexed.clear();
+            unindexedCleared = true;
+            return;
+        }
+        text.clear();
+        byColour.clear();
+    }
+
+    private boolean gridBuilt() {
+        return gridReady.getCount() == 0;
+    }
+
+    // fresh grid, text and colour indexes for whatever the store holds, under the write
+    // lock. The text index, by far the dearest, is built on the fork-join pool
+    private void rebuildIndexes() {
+        int[] slots = allSlots();
+        text = TrigramIndex.build(slots, store);
+        grid = new GridIndex(noteWidth, noteHeight);
+        byColour = new ColourIndex();
+        for (int slot : slots) {
+            grid.add(slot, store.x(slot), store.y(slot));
+            byColour.add(slot, store.colourId(slot));
+        }
+    }
+
+    // grid lookups, scanning every note while the grid is still being built
+    private int[] notesAt(int x, int y) {
+        if (gridBuilt()) {
+            return grid.notesAt(x, y, store);
+        }
+        int[] result = new int[0];
+        for (int slot = store.first(); slot >= 0; slot = store.next(slot)) {
+            if (covers(slot, x, y)) {
+                result = Arrays.copyOf(result, result.length + 1);
+                result[result.length - 1] = slot;
+            }
+        }
+        return result;
+    }
+
+    private int noteAnchoredAt(int x, int y) {
+        if (gridBuilt()) {
+            return grid.noteAnchoredAt(x, y, store);
+        }
+        for (int slot = store.first(); slot >= 0; slot = store.next(slot)) {
+            if (store.x(slot) == x && store.y(slot) == y) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // whether the note in 'slot' covers (x, y), every note is noteWidth x noteHeight
+    private boolean covers(int slot, int x, int y) {
+        int nx = store.x(slot);
+        int ny = store.y(slot);
+        return x >= nx && x < nx + noteWidth && y >= ny && y < ny + noteHeight;
+    }
+
+    // every slot in post order, for rebuilding the indexes
+    private int[] allSlots() {
+        int[] all = new int[store.size()];
+        int i = 0;
+        for (int slot = store.first(); slot >= 0; slot = store.next(slot)) {
+            all[i++] = slot;
+        }
+        return all;
+    }
+
+    // lock acquisition goes through these so STATS can report waiting and holding times
+    private long writeLock() {
+        long start = System.nanoTime();
+        long stamp = lock.writeLock();
+        writeLockedAt = System.nanoTime();
+        Metrics.writeLockWait.record(writeLockedAt - start);
+        return stamp;
+    }
+
+    private void unlockWrite(long stamp) {
+        Metrics.writeLockHold.record(System.nanoTime() - writeLockedAt);
+        lock.unlockWrite(stamp);
+    }
+
+    private long readLock() {
+        long start = System.nanoTime();
+        long stamp = lock.readLock();
+        Metrics.readLockWait.record(System.nanoTime() - start);
+        return stamp;
+    }
+
+    // one command run against this board, called by Metrics.command
+    void recordCommand(int kind, long nanos, boolean error) {
+        commands.incrementAndGet(kind);
+        latency.record(nanos);
+        if (error) {
+            errors.incrementAndGet(kind);
+        }
+    }
+
+    // STATS gauges and counters for this board, every line labelled board="<name>"
+    public void appendStats(StringBuilder sb) {
+        String label = "board=\"" + name + "\"";
+        long stamp = readLock();
+        try {
+            Metrics.value(sb, "bboard_notes", label, store.size());
+            Metrics.value(sb, "bboard_pins", label, pinCount);
+            Metrics.value(sb, "bboard_version", label, version);
+            // heap: note columns and indexes; off heap: the message arena (live text in it too)
+            Metrics.value(sb, "bboard_memory_bytes", label, store.heapBytes() + grid.heapBytes()
+                    + text.heapBytes() + byColour.heapBytes() + pinIndex.heapBytes());
+            Metrics.value(sb, "bboard_offheap_bytes", label, store.offHeapBytes());
+            Metrics.value(sb, "bboard_message_bytes", label, store.messageBytes());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < Metrics.COMMANDS.length; i++) {
+            if (commands.get(i) == 0) {
+                continue; // most boards only ever see a few kinds
+            }
+            String commandLabel = label + ",command=\"" + Metrics.COMMANDS[i] + "\"";
+            Metrics.value(sb, "bboard_board_commands_total", commandLabel, commands.get(i));
+            Metrics.value(sb, "bboard_board_command_errors_total", commandLabel, errors.get(i));
+        }
+        Metrics.summary(sb, "bboard_board_command_latency_seconds", label, latency);
     }
 
     // standardizes error messages from server
@@ -157,17 +1046,44 @@ public class Board {
         return "ERROR " + code + " " + msg;
     }
 
-    public synchronized String resize(int w, int h, int nw, int nh) {
-        // If dimensions match, just lock configuration (don't clear)
-        if (w == BBoard.BOARD_WIDTH && h == BBoard.BOARD_HEIGHT &&
-                nw == BBoard.NOTE_WIDTH && nh == BBoard.NOTE_HEIGHT) {
-            BBoard.updateDimensions(w, h, nw, nh); // Sets configured = true
-            return "SUCCESS RESIZED";
+    public String resize(int w, int h, int nw, int nh) {
+        if (logFailed()) {
+            return LOG_FAILED;
         }
+        return durable(resizeLocked(w, h, nw, nh));
+    }
 
-        // Otherwise, resize and clear
-        BBoard.updateDimensions(w, h, nw, nh);
-        notes.clear();
-        return "SUCCESS RESIZED";
+    private String resizeLocked(int w, int h, int nw, int nh) {
+        long stamp = writeLock();
+        try {
+            if (wal != null) {
+                wal.appendResize(w, h, nw, nh); // every RESIZE succeeds
+            }
+            // If dimensions match, just lock configuration (don't clear)
+            if (w == boardWidth && h == boardHeight && nw == noteWidth && nh == noteHeight) {
+                configured = true;
+                // configured flag is part of the GET header, so this is still a change
+                record("RESIZE " + w + " " + h + " " + nw + " " + nh + " false");
+                return "SUCCESS RESIZED";
+            }
+
+            // Otherwise, resize and clear
+            boardWidth = w;
+            boardHeight = h;
+            noteWidth = nw;
+            noteHeight = nh;
+            configured = true;
+            indexClear();
+            store.clear();
+            pinCount = 0;
+            pinIndex.clear();
+            if (gridBuilt()) {
+                grid = new GridIndex(nw, nh); // cell size follows the new note size
+            }
+            record("RESIZE " + w + " " + h + " " + nw + " " + nh + " true"); // true = notes cleared
+            return "SUCCESS RESIZED";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 }
@@ -0,0 +1,187 @@
+import java.util.*;
+
+/*Immutable picture of the board at one version.
+Responsible for the following:
+    - Holding the notes frozen as NoteColumns (pins and messages shared, not copied)
+      plus the dimensions
+    - Building the unfiltered GET response once, the first time someone asks
+      (text, and the binary NOTES frame for clients that negotiated it)
+    - Deflating each of those once too, for connections that negotiated compression
+    - Handing a text GET out in pieces of about CHUNK_CHARS (see TextChunks), so the
+      servers can write it to the socket without holding the whole reply
+Board hands the same snapshot to every reader until the next mutation, so N
+polling clients share one serialisation instead of doing N. A filtered GET gets a
+throwaway snapshot of just the matching notes, serialised outside the board lock
+one chunk at a time, never as one string.
+*/
+
+public class BoardSnapshot {
+
+    // a text GET goes out in pieces of about this many chars (one note is never split),
+    // well inside a connection's 64 KB output buffer
+    static final int CHUNK_CHARS = 16 * 1024;
+
+    public final long version;
+    public final int boardWidth;
+    public final int boardHeight;
+    public final int noteWidth;
+    public final int noteHeight;
+    public final boolean configured;
+    public final NoteColumns notes; // frozen, never modified
+    public final Colours colours; // the board's, turns the notes' colour ids back into names
+    private final Map<String, Integer> colourIndex; // the board's wire colour ids
+    public final boolean shared; // the board's snapshot of this version, false for a filtered GET's own
+    public final String nextCursor; // a page of a GET ... LIMIT n: where the next one starts, null if none follows
+
+    // built lazily; two readers racing may both build it, they produce the same string
+    private volatile String fullGetResponse;
+    private volatile byte[] fullGetFrame;
+    private volatile byte[] fullGetDeflated;
+    private volatile byte[] fullGetFrameDeflated;
+
+    public BoardSnapshot(long version, int boardWidth, int boardHeight, int noteWidth, int noteHeight,
+            boolean configured, NoteColumns notes, Colours colours, Map<String, Integer> colourIndex, boolean shared,
+            String nextCursor) {
+        this.version = version;
+        this.boardWidth = boardWidth;
+        this.boardHeight = boardHeight;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        this.configured = configured;
+        this.colours = colours;
+        this.colourIndex = colourIndex;
+        this.notes = notes;
+        this.shared = shared;
+        this.nextCursor = nextCursor;
+    }
+
+    // response to a plain GET, same text Board.getFilteredNotes(null, null, null) used to build
+    public String fullGetResponse() {
+        String response = fullGetResponse;
+        if (response == null) {
+            StringBuilder sb = new StringBuilder();
+            appendHeader(sb, boardWidth, boardHeight, noteWidth, noteHeight, configured, version);
+            for (int i = 0; i < notes.size; i++) {
+                notes.appendProtocolLines(i, sb, colours);
+            }
+            appendComplete(sb);
+            response = sb.toString();
+            fullGetResponse = response;
+        }
+        return response;
+    }
+
+    // same reply as a binary NOTES frame payload, cached the same way
+    public byte[] fullGetFrame() {
+        byte[] frame = fullGetFrame;
+        if (frame == null) {
+            frame = encodeNotes(boardWidth, boardHeight, noteWidth, noteHeight, configured, version, notes,
+                    colours, colourIndex, nextCursor);
+            fullGetFrame = frame;
+        }
+        return frame;
+    }
+
+    // the same text as fullGetResponse(), in pieces
+    public TextChunks textChunks() {
+        return new TextChunks();
+    }
+
+    // one text GET reply, handed out a chunk at a time (without the final line ending).
+    // The shared snapshot slices its cached full GET, every connection reads the same
+    // string; a filtered one serialises just the next few notes on each call
+    public class TextChunks {
+        private final String whole = shared ? fullGetResponse() : null;
+        private int position = -1; // chars of 'whole' handed out, or notes serialised (-1: header not yet)
+        private boolean done = false;
+
+        // next piece of the reply, null once all of it was handed out
+        public String next() {
+            if (done) {
+                return null;
+            }
+            if (whole != null) {
+                int from = Math.max(position, 0);
+                int end = Math.min(whole.length(), from + CHUNK_CHARS);
+                if (end < whole.length() && Character.isHighSurrogate(whole.charAt(end - 1))) {
+                    end--; // keep a surrogate pair in one piece, each is encoded on its own
+                }
+                position = end;
+                done = end == whole.length();
+                return whole.substring(from, end);
+            }
+
+            StringBuilder sb = new StringBuilder(CHUNK_CHARS + 256);
+            if (position < 0) {
+                appendHeader(sb, boardWidth, boardHeight, noteWidth, noteHeight, configured, version);
+                position = 0;
+            }
+            while (position < notes.size && sb.length() < CHUNK_CHARS) {
+                notes.appendProtocolLines(position++, sb, colours);
+            }
+            if (position == notes.size) {
+                appendComplete(sb);
+                done = true;
+            }
+            return sb.toString();
+        }
+    }
+
+    // compressed full GET for a text connection, null if 'reply' isn't this snapshot's
+    // full GET (compared by identity, the cached string is handed to everyone)
+    public byte[] deflatedFullGet(String reply) {
+        if (reply != fullGetResponse) {
+            return null;
+        }
+        byte[] deflated = fullGetDeflated;
+        if (deflated == null) {
+            deflated = WireCodec.deflateLines(reply);
+            fullGetDeflated = deflated;
+        }
+        return deflated;
+    }
+
+    // same for a binary connection: the DEFLATED frame for this snapshot's NOTES frame
+    public byte[] deflatedFullGetFrame(byte[] reply) {
+        if (reply != fullGetFrame) {
+            return null;
+        }
+        byte[] deflated = fullGetFrameDeflated;
+        if (deflated == null) {
+            deflated = WireCodec.deflatedFrame(reply);
+            fullGetFrameDeflated = deflated;
+        }
+        return deflated;
+    }
+
+    static byte[] encodeNotes(int w, int h, int nw, int nh, boolean configured, long version, NoteColumns notes,
+            Colours colours, Map<String, Integer> colourIndex, String nextCursor) {
+        WireCodec.Out out = new WireCodec.Out();
+        WireCodec.notesHeader(out, w, h, nw, nh, configured, version, notes.size);
+        for (int i = 0; i < notes.size; i++) {
+            notes.appendFrame(i, out, colours, colourIndex);
+        }
+        if (nextCursor != null) {
+            out.string(nextCursor); // only a page that has a next one carries anything after the notes
+        }
+        return out.toByteArray();
+    }
+
+    // Even if empty, send complete so client knows to clear board. A page with more
+    // after it ends in GET_MORE and the cursor to ask for the next one with instead
+    private void appendComplete(StringBuilder sb) {
+        if (nextCursor != null) {
+            sb.append("SUCCESS GET_MORE ").append(nextCursor);
+            return;
+        }
+        sb.append(notes.size == 0 ? "SUCCESS GET_COMPLETE - No notes found" : "SUCCESS GET_COMPLETE");
+    }
+
+    // Header with dimensions, configured flag and board version, shared with filtered GETs
+    // version comes last so older clients that read the first six fields are unaffected
+    static void appendHeader(StringBuilder sb, int w, int h, int nw, int nh, boolean configured, long version) {
+        sb.append("SUCCESS GET ").append(w).append(" ").append(h).append(" ")
+                .append(nw).append(" ").append(nh).append(" ")
+                .append(configured).append(" ").append(version).append("\n");
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/*Registry of the boards one server process hosts.
+Responsible for the following:
+    - Holding every board by name, the one from the command line under "default"
+    - Parsing the --boards option that adds the others at startup
+    - Checking board names, which double as data subdirectories with --data
+Connections start on the default board and switch with USE <name> (see Session).
+Boards share nothing but this map, so each keeps its own lock and indexes.
+*/
+
+public class Boards {
+
+    public static final String DEFAULT = "default";
+
+    // used as a directory name with --data, so nothing that could leave the directory
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final Map<String, Board> boards = new ConcurrentHashMap<>();
+
+    // the board new connections start on
+    private static volatile Board defaultBoard;
+
+    public static boolean validName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    // registers (or replaces) a board under its name
+    public static void add(Board board) {
+        boards.put(board.name, board);
+        if (board.name.equals(DEFAULT)) {
+            defaultBoard = board;
+        }
+    }
+
+    // null if there is no board by that name
+    public static Board get(String name) {
+        return boards.get(name);
+    }
+
+    public static Board defaultBoard() {
+        return defaultBoard;
+    }
+
+    // every board, sorted by name (STATS, checkpoints)
+    public static List<Board> all() {
+        List<Board> all = new ArrayList<>(boards.values());
+        all.sort(Comparator.comparing(b -> b.name));
+        return all;
+    }
+
+    // --boards=<spec>,<spec>,... where a spec is either just a name (same dimensions and
+    // colours as the default board) or name:w:h:nw:nh:colour:colour...
+    public static List<Board> parse(String option, int w, int h, int nw, int nh, List<String> colours) {
+        List<Board> parsed = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String spec : option.split(",")) {
+            String[] parts = spec.trim().split(":");
+            String name = parts[0];
+            if (!validName(name) || name.equals(DEFAULT)) {
+                throw new IllegalArgumentException("Bad board name '" + name + "' (letters, digits, - and _ only)");
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException("Board '" + name + "' given twice");
+            }
+            if (parts.length == 1) {
+                parsed.add(new Board(name, w, h, nw, nh, colours));
+                continue;
+            }
+            if (parts.length < 6) {
+                throw new IllegalArgumentException("Board '" + name + "' needs name:w:h:nw:nh:colour[:colour...]");
+            }
+            parsed.add(new Board(name, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                    Arrays.asList(parts).subList(5, parts.length)));
+        }
+        return parsed;
+    }
+}
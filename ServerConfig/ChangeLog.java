@@ -0,0 +1,61 @@
+/*Bounded history of board mutations, used by GET SINCE <version>.
+Responsible for the following:
+    - Remembering the last few thousand events, each tagged with the board version
+    - Forgetting the oldest ones once full (ring buffer, nothing grows forever)
+    - Telling Board whether a client's version is still covered or needs a full resync
+One entry per version. Event text is the part after "DELTA <version> ", e.g.
+"POST 1 2 yellow hello", "PIN 3 3 2", "UNPIN 3 3 1", "REMOVE 1 2 5 5" (every note
+a shake removed), "CLEAR", "RESIZE 10 10 2 2 true" (true = notes were cleared).
+Not thread safe on its own, Board only touches it while holding its lock.
+*/
+
+public class ChangeLog {
+
+    private final long[] versions;
+    private final String[] events;
+    private int head = 0; // index of the oldest entry
+    private int size = 0;
+
+    // every event with version > floor is still in the log
+    private long floor = 0;
+
+    public ChangeLog(int capacity) {
+        versions = new long[capacity];
+        events = new String[capacity];
+    }
+
+    public void append(long version, String event) {
+        if (size == events.length) {
+            // full, the oldest entry makes room and its version is no longer complete
+            floor = versions[head];
+            head = (head + 1) % events.length;
+            size--;
+        }
+        int tail = (head + size) % events.length;
+        versions[tail] = version;
+        events[tail] = event;
+        size++;
+    }
+
+    // forget everything, versions up to and including 'version' can't be replayed
+    public void reset(long version) {
+        head = 0;
+        size = 0;
+        floor = version;
+    }
+
+    // true if every change after 'since' can still be replayed
+    public boolean covers(long since) {
+        return since >= floor;
+    }
+
+    // appends "DELTA <version> <event>" for every event after 'since'
+    public void appendSince(long since, StringBuilder sb) {
+        for (int i = 0; i < size; i++) {
+            int idx = (head + i) % events.length;
+            if (versions[idx] > since) {
+                sb.append("DELTA ").append(versions[idx]).append(" ").append(events[idx]).append("\n");
+            }
+        }
+    }
+}
@@ -1,18 +1,52 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
 
 /*Setting up Thread-per-client. Responsible for the following:
-    - Establish one thread per client
+    - Establish one thread per client (platform or virtual, BBoard decides)
     - Each client will have their own input/output streams
-    - only one response per request
+    - only one response per request, in request order, even when requests are pipelined
+    - flushing once per batch: replies are buffered until every request already received is answered
+    - pushing board events to SUBSCRIBEd clients from a small writer thread
+    - counting the connection and its bytes in and out for STATS
+    - switching the connection to binary frames when the client asks (see WireCodec)
+    - deflating big replies when the client asks, the full GET from the snapshot's shared copy
+    - writing GET replies chunk by chunk from the board snapshot (see BoardSnapshot.textChunks)
+      so a big board never turns into one big String per request
 */
 
-// extend Thread class for Clienthnadler
-public class ClientHandler extends Thread{
+// Runnable rather than a Thread subclass so BBoard can run it on a virtual thread
+public class ClientHandler implements Runnable{
     private Socket socket;
-    private BufferedReader in; //read text from client one at a time
-    private PrintWriter out; //sends response to client, make sure sent immediately
+    private WireCodec.Input in; //read text from client one line at a time, or frames after PROTOCOL BINARY
+    private OutputStream bytesOut; //buffered socket output, frames are written here directly
+    private PrintWriter out; //sends text response to client, buffered, flushed when the input runs dry
+    private final PushQueue pushes = new PushQueue(); //events waiting to go out, only used after SUBSCRIBE
+    private final Session session = new Session(pushes);
+
+    //replies (run) and events (push writer) both write, this keeps each one whole. Held across
+    //blocking socket writes, so a lock rather than a monitor: a virtual thread waiting on a
+    //slow client must not pin its carrier thread (same reason Board uses StampedLock)
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private boolean binary = false; //guarded by writeLock
+    private boolean compress = false; //guarded by writeLock, replies of COMPRESS_MIN_BYTES or more go out deflated
+
+    //below this deflating saves too little to be worth the CPU (a few TCP packets)
+    private static final int COMPRESS_MIN_BYTES = 8 * 1024;
+
+    //with compression on, text is written as bytes so deflated bodies can go in between
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(CHARSET);
+
+    //big enough that a typical full GET goes out in one write
+    private static final int OUT_BUFFER = 64 * 1024;
+
+    //requests are a few bytes, anything this big is a broken or hostile client
+    private static final int MAX_REQUEST_FRAME = 1024 * 1024;
 
     public ClientHandler(Socket socket){
         this.socket = socket;
@@ -21,40 +55,350 @@ public class ClientHandler extends Thread{
     //method will automatically execute 
     @Override
     public void run(){
+        Metrics.connectionOpened();
         //create input and output stream for this client.
         try { 
-            in = new BufferedReader (new InputStreamReader(socket.getInputStream())); 
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new WireCodec.Input(new CountingInput(socket.getInputStream())); 
+            //no autoflush: a pipelined batch of requests goes back in as few TCP writes as possible
+            bytesOut = new BufferedOutputStream(new CountingOutput(socket.getOutputStream()), OUT_BUFFER);
+            out = new PrintWriter(new OutputStreamWriter(bytesOut), false);
             
             //immediately send handshake info
             sendHandshake(); 
 
-            //Dealing with client requests, server here will read request as long as its not empty and generate a response
-            String line;
-            while ((line = in.readLine()) != null){
-                String response = ProtocolParser.parse(line); //this passes raw command to protocol parser
-                out.println(response); //send single response to client once command has gone through parser
+            if (serveText()){
+                serveBinary();
+            }
+            flush();
+
+        } catch (IOException e) {
+            //If client abruptly/unexpectedly disconnects, this makes sure server doesn't crash and burnnn
+        } catch (Exception e) {
+            //anything else is a bug, still only this client is lost but it shows up in STATS and the log
+            Metrics.connectionError();
+            e.printStackTrace();
+        } finally {
+            Metrics.connectionClosed();
+            session.close();
+            pushes.stop();
+            try {socket.close();} catch (IOException ignored) {}
+        }
+    }
 
-                //client has completed their request and wishes to disconnect, close socket
-                if(line.equals("DISCONNECT")){
-                    break;
+    //text protocol until the client disconnects (false) or switches to binary (true)
+    private boolean serveText() throws IOException{
+        //Dealing with client requests, server here will read request as long as its not empty and generate a response
+        String line;
+        while ((line = in.readLine()) != null){
+            if (line.equals(WireCodec.NEGOTIATE)){
+                writeLock.lock();
+                try {
+                    out.println(WireCodec.ACCEPTED);
+                    out.flush();
+                    binary = true; //everything after the answer is framed, events included
+                } finally {
+                    writeLock.unlock();
                 }
+                return true;
+            }
+            if (line.equals(WireCodec.COMPRESS)){
+                enableCompression();
+                continue;
             }
 
-        } catch (Exception e) {
-            //If client abruptly/unexpectedly disconnects, this makes sure server doesn't crash and burnnn
+            //GET listing notes is streamed from its snapshot, everything else is one reply String
+            BoardSnapshot listing = ProtocolParser.parseListing(line, session);
+            if (listing != null){
+                replyListing(listing);
+            } else {
+                String response = ProtocolParser.parse(line, session); //this passes raw command to protocol parser
+                reply(response); //queue single response to client once command has gone through parser
+            }
+
+            //client has completed their request and wishes to disconnect, close socket
+            if(line.equals("DISCONNECT")){
+                return false;
+            }
+
+            //more requests already here (pipelined), answer them before paying for a write.
+            //A partly received next line counts too, the client is still in the middle of sending it
+            if (!in.ready()){
+                flush();
+            }
+        }
+        return false;
+    }
+
+    //same loop with one frame per request and one per reply
+    private void serveBinary() throws IOException{
+        byte[] frame;
+        while ((frame = in.readFrame(MAX_REQUEST_FRAME)) != null){
+            if (WireCodec.COMPRESS.equals(WireCodec.textOf(frame))){
+                enableCompression();
+                continue;
+            }
+            replyFrame(ProtocolParser.parseFrame(frame, session));
+            if (WireCodec.isDisconnect(frame)){
+                return;
+            }
+            if (!in.ready()){
+                flush();
+            }
+        }
+    }
+
+    //one reply or pushed event, in whichever framing the connection uses by now
+    private void send(String text) throws IOException{
+        writeLock.lock();
+        try {
+            if (binary){
+                WireCodec.writeFrame(bytesOut, WireCodec.text(text));
+            } else if (compress){
+                bytesOut.write(text.getBytes(CHARSET));
+                bytesOut.write(NEWLINE);
+            } else {
+                out.println(text);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //a reply to a request: like send(), but big ones are deflated once compression is on
+    private void reply(String text) throws IOException{
+        writeLock.lock();
+        try {
+            if (!compress || binary || text.length() < COMPRESS_MIN_BYTES){
+                send(text);
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        byte[] deflated = session.board.snapshot().deflatedFullGet(text);
+        if (deflated == null){
+            deflated = WireCodec.deflateLines(text); //not the shared full GET, deflate just for us
+        }
+        writeLock.lock();
+        try {
+            bytesOut.write((WireCodec.DEFLATE_LINE + deflated.length).getBytes(CHARSET));
+            bytesOut.write(NEWLINE);
+            bytesOut.write(deflated);
         } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //a GET reply, written a chunk at a time. The writer buffers at most OUT_BUFFER bytes
+    //and sends them whenever it fills, so only the chunk being written is in memory
+    private void replyListing(BoardSnapshot listing) throws IOException{
+        BoardSnapshot.TextChunks chunks = listing.textChunks();
+        writeLock.lock();
+        try {
+            if (!compress){
+                String chunk;
+                while ((chunk = chunks.next()) != null){
+                    out.write(chunk);
+                }
+                out.println();
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (listing.shared){
+            reply(listing.fullGetResponse()); //deflated once per version, shared with every other connection
+            return;
+        }
+
+        //filtered: deflated as it is serialised. The DEFLATE line needs the length first, so
+        //the compressed bytes are collected, the text never is (only a short head of it,
+        //which is sent as it is if the whole reply turns out to be that short)
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        ByteArrayOutputStream deflated = null;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream zip = null;
+            String chunk;
+            while ((chunk = chunks.next()) != null){
+                byte[] bytes = chunk.getBytes(CHARSET);
+                if (zip == null && head.size() + bytes.length < COMPRESS_MIN_BYTES){
+                    head.write(bytes);
+                    continue;
+                }
+                if (zip == null){
+                    deflated = new ByteArrayOutputStream();
+                    zip = new DeflaterOutputStream(deflated, deflater, 16 * 1024);
+                    head.writeTo(zip);
+                }
+                zip.write(bytes);
+            }
+            if (zip != null){
+                zip.write(NEWLINE);
+                zip.finish();
+            }
+        } finally {
+            deflater.end();
+        }
+        writeLock.lock();
+        try {
+            if (deflated == null){
+                bytesOut.write(head.toByteArray());
+                bytesOut.write(NEWLINE);
+                return;
+            }
+            bytesOut.write((WireCodec.DEFLATE_LINE + deflated.size()).getBytes(CHARSET));
+            bytesOut.write(NEWLINE);
+            deflated.writeTo(bytesOut);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void replyFrame(byte[] payload) throws IOException{
+        boolean deflate;
+        writeLock.lock();
+        try {
+            deflate = compress && payload.length >= COMPRESS_MIN_BYTES;
+        } finally {
+            writeLock.unlock();
+        }
+        if (deflate){
+            byte[] deflated = session.board.snapshot().deflatedFullGetFrame(payload);
+            payload = deflated != null ? deflated : WireCodec.deflatedFrame(payload);
+        }
+        writeLock.lock();
+        try {
+            WireCodec.writeFrame(bytesOut, payload);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //COMPRESS DEFLATE: answered uncompressed, the replies after it may not be
+    private void enableCompression() throws IOException{
+        writeLock.lock();
+        try {
+            send(WireCodec.COMPRESS_ACCEPTED);
+            out.flush(); //nothing may be left in the writer once text goes out as bytes
+            compress = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void flush() throws IOException{
+        writeLock.lock();
+        try {
+            out.flush();
+            if (out.checkError()){
+                throw new IOException("Client connection failed");
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //bounded queue of pushed EVENT lines plus the thread that writes them out.
+    //send() holds writeLock, so events never land in the middle of a response.
+    //A flush from here may also send replies queued by run(), which is harmless
+    private class PushQueue implements EventHub.Subscriber{
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(EventHub.OUTBOUND_CAPACITY);
+        private Thread writer;
+
+        @Override
+        public boolean offer(String line){
+            startWriter();
+            return queue.offer(line);
+        }
+
+        //slow consumer, EventHub already dropped us. Closing the socket ends run() too
+        @Override
+        public void close(){
             try {socket.close();} catch (IOException ignored) {}
         }
+
+        //writer is only started once there is something to push
+        private synchronized void startWriter(){
+            if (writer == null){
+                writer = Thread.startVirtualThread(() -> {
+                    try {
+                        while (true){
+                            send(queue.take());
+                            //events that piled up meanwhile go out in the same write
+                            String next;
+                            while ((next = queue.poll()) != null){
+                                send(next);
+                            }
+                            flush();
+                        }
+                    } catch (InterruptedException e) {
+                        //stop(): the connection is already closing
+                    } catch (IOException e) {
+                        //client gone mid-push. Closing the socket ends run(), whose finally drops
+                        //the subscription (Session belongs to that thread), so offer() doesn't keep
+                        //filling a queue nobody drains until EventHub gives up on it
+                        close();
+                    }
+                });
+            }
+        }
+
+        synchronized void stop(){
+            if (writer != null){
+                writer.interrupt();
+            }
+        }
     }
+    //socket streams that count what goes through them, before any buffering or decoding
+    private static class CountingInput extends FilterInputStream{
+        CountingInput(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException{
+            int b = super.read();
+            if (b >= 0){
+                Metrics.bytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            int n = super.read(b, off, len);
+            if (n > 0){
+                Metrics.bytesIn(n);
+            }
+            return n;
+        }
+    }
+
+    private static class CountingOutput extends FilterOutputStream{
+        CountingOutput(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            out.write(b);
+            Metrics.bytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            out.write(b, off, len);
+            Metrics.bytesOut(len);
+        }
+    }
+
     //Sends server configuration (rules and requirements) to client after connection
-    private void sendHandshake(){
-        out.println("BOARD " + BBoard.BOARD_WIDTH + " " + BBoard.BOARD_HEIGHT);
-        out.println("NOTE " + BBoard.NOTE_WIDTH + " " + BBoard.NOTE_HEIGHT);
-
-        //had to fix colour set to fix recurring error when picking a colour not listed original list when setting up server
-        List<String> colours = new ArrayList<> (BBoard.VALID_COLOURS);
-        Collections.sort(colours);
-        out.println("COLOURS " + String.join(" ", colours));
+    private void sendHandshake() throws IOException{
+        //connections start on the default board, USE switches later
+        for (String line : Boards.defaultBoard().handshakeLines()){
+            send(line);
+        }
+        flush();
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+import java.util.*;
+
+/*Notes of each colour, as one linked list per colour id threaded through slot arrays.
+Responsible for the following:
+    - Keeping every colour's notes (NoteStore slots) in post order, so colour=
+      only visits its own colour and needs no sorting
+    - Counting the notes of each colour
+Two ints per slot instead of a hash set entry per note. Not thread safe, Board
+only touches it under its lock.
+*/
+
+public class ColourIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private int[] next = new int[16]; // per slot, -1 ends a colour's list
+    private int[] prev = new int[16];
+    private int[] head = new int[0]; // per colour id, -1 if no note has it
+    private int[] tail = new int[0];
+    private int[] count = new int[0];
+
+    // appends the note after every other one of its colour
+    public void add(int slot, int colourId) {
+        ensureColour(colourId);
+        if (slot >= next.length) {
+            int grown = Math.max(slot + 1, next.length + (next.length >> 1));
+            next = Arrays.copyOf(next, grown);
+            prev = Arrays.copyOf(prev, grown);
+        }
+        next[slot] = -1;
+        prev[slot] = tail[colourId];
+        if (tail[colourId] < 0) {
+            head[colourId] = slot;
+        } else {
+            next[tail[colourId]] = slot;
+        }
+        tail[colourId] = slot;
+        count[colourId]++;
+    }
+
+    public void remove(int slot, int colourId) {
+        int before = prev[slot];
+        int after = next[slot];
+        if (before < 0) {
+            head[colourId] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after < 0) {
+            tail[colourId] = before;
+        } else {
+            prev[after] = before;
+        }
+        count[colourId]--;
+    }
+
+    public void clear() {
+        next = new int[16];
+        prev = new int[16];
+        head = new int[0];
+        tail = new int[0];
+        count = new int[0];
+    }
+
+    public int count(int colourId) {
+        return colourId < count.length ? count[colourId] : 0;
+    }
+
+    // walking one colour's list from a given note, as a GET page does: first slot of
+    // the colour (-1 if none) and the slot after 'slot' in its colour (-1 at the end)
+    public int first(int colourId) {
+        return colourId < head.length ? head[colourId] : -1;
+    }
+
+    public int next(int slot) {
+        return next[slot];
+    }
+
+    // slots of that colour, in post order
+    public int[] slots(int colourId) {
+        if (colourId >= head.length) {
+            return NONE;
+        }
+        int[] all = new int[count[colourId]];
+        int i = 0;
+        for (int slot = head[colourId]; slot >= 0; slot = next[slot]) {
+            all[i++] = slot;
+        }
+        return all;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        return 8L * next.length + 12L * head.length;
+    }
+
+    private void ensureColour(int colourId) {
+        if (colourId < head.length) {
+            return;
+        }
+        int from = head.length;
+        head = Arrays.copyOf(head, colourId + 1);
+        tail = Arrays.copyOf(tail, colourId + 1);
+        count = Arrays.copyOf(count, colourId + 1);
+        Arrays.fill(head, from, head.length, -1);
+        Arrays.fill(tail, from, tail.length, -1);
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.*;
+
+/*Interns colour names to small integer ids.
+Responsible for the following:
+    - Giving every configured colour an id (0, 1, 2, ...) once, at startup
+    - Translating between a colour name and its id
+Notes keep the id as a single byte instead of a String reference, and Board
+keeps a list of notes per id (ColourIndex) so colour= filters only visit matching notes.
+*/
+
+public class Colours {
+
+    // ids have to fit in the byte NoteStore keeps per note
+    public static final int MAX_COLOURS = 256;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    // adds a (lowercase) colour if it is new, returns its id
+    public synchronized int register(String colour) {
+        Integer id = ids.get(colour);
+        if (id != null) {
+            return id;
+        }
+        if (names.size() == MAX_COLOURS) {
+            throw new IllegalArgumentException("At most " + MAX_COLOURS + " colours are supported");
+        }
+        names.add(colour);
+        ids.put(colour, names.size() - 1);
+        return names.size() - 1;
+    }
+
+    // id of a colour, -1 if it was never registered
+    public int id(String colour) {
+        Integer id = ids.get(colour);
+        return id == null ? -1 : id;
+    }
+
+    // name for an id, works with the signed byte NoteStore keeps too
+    public String name(int id) {
+        return names.get(id & 0xFF);
+    }
+
+    public int count() {
+        return names.size();
+    }
+}
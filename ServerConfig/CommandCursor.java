@@ -0,0 +1,146 @@
+import java.util.*;
+
+/*Walks one command line token by token without splitting it.
+Responsible for the following:
+    - Finding token boundaries (whitespace separated, like split("\\s+"))
+    - Comparing and parsing the current token in place (keywords, integers, colours)
+    - Only creating a String when the command really keeps the text (message, refersTo)
+ProtocolParser creates one per line; it is small and short lived enough for the
+JIT to keep it off the heap.
+*/
+
+public class CommandCursor {
+
+    private final String line;
+    private int pos = 0; // where the next token search starts
+    private int start = 0; // current token is line[start, end)
+    private int end = 0;
+
+    public CommandCursor(String line) {
+        this.line = line;
+    }
+
+    // first token is the keyword, it starts at 0 even if the line starts with a space
+    // (split("\\s+") gives an empty first token there, which is an unknown command)
+    public void keyword() {
+        start = 0;
+        end = 0;
+        while (end < line.length() && !isSpace(line.charAt(end))) {
+            end++;
+        }
+        pos = end;
+    }
+
+    // moves to the next token, false if there are none left
+    public boolean next() {
+        while (pos < line.length() && isSpace(line.charAt(pos))) {
+            pos++;
+        }
+        if (pos == line.length()) {
+            return false;
+        }
+        start = pos;
+        while (pos < line.length() && !isSpace(line.charAt(pos))) {
+            pos++;
+        }
+        end = pos;
+        return true;
+    }
+
+    // how many tokens are left after the current one (doesn't move the cursor),
+    // lets a command check its argument count the way tokens.length used to
+    public int remainingTokens() {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = pos; i < line.length(); i++) {
+            boolean space = isSpace(line.charAt(i));
+            if (!space && !inToken) {
+                count++;
+            }
+            inToken = !space;
+        }
+        return count;
+    }
+
+    public boolean is(String word) {
+        return end - start == word.length() && line.regionMatches(start, word, 0, word.length());
+    }
+
+    public boolean startsWith(String prefix) {
+        return end - start >= prefix.length() && line.regionMatches(start, prefix, 0, prefix.length());
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    // current token as an int, same rules as Integer.parseInt but no substring
+    public int intValue() {
+        long value = longValue();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException();
+        }
+        return (int) value;
+    }
+
+    // current token as a long, same rules as Long.parseLong
+    public long longValue() {
+        int i = start;
+        if (i >= end) {
+            throw new NumberFormatException();
+        }
+        boolean negative = false;
+        char first = line.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+                throw new NumberFormatException();
+            }
+        }
+        // accumulate negatively so Long.MIN_VALUE fits, like Long.parseLong does
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0 || result < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException();
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException();
+            }
+            return -result;
+        }
+        return result;
+    }
+
+    // case-insensitive lookup of the token (from 'skip') in a set of lowercase words,
+    // returns the set's own String so nothing new is allocated; null if not there
+    public String matchIn(Collection<String> words, int skip) {
+        int len = end - start - skip;
+        for (String w : words) {
+            if (w.length() == len && line.regionMatches(true, start + skip, w, 0, len)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    // current token (from 'skip') as a String, for text that has to be kept
+    public String text(int skip) {
+        return line.substring(start + skip, end);
+    }
+
+    // everything after the current token and the single separator that follows it
+    public String rest() {
+        int from = end + 1;
+        return from < line.length() ? line.substring(from) : "";
+    }
+
+    // the \s class: space, \t, \n, \u000B, \f, \r
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*Registry of SUBSCRIBEd connections and fan-out of board events.
+Responsible for the following:
+    - Keeping the set of live subscribers (added/removed from any thread)
+    - Handing every event line to every subscriber without ever blocking the board
+    - Dropping and disconnecting subscribers whose outbound queue is full
+Each transport (ClientHandler, NioServer) supplies its own Subscriber with a
+bounded queue and its own way of getting those lines onto the socket.
+*/
+
+public class EventHub {
+
+    // how many pushed lines a connection may have waiting before it counts as too slow
+    public static final int OUTBOUND_CAPACITY = 1024;
+
+    public interface Subscriber {
+        // queue the line for sending, must not block; false = queue full
+        boolean offer(String line);
+
+        // called once the subscriber has been dropped for falling behind
+        void close();
+    }
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    public void add(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void remove(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    // called by Board under its write lock, so events reach every queue in version order
+    public void publish(String line) {
+        for (Subscriber s : subscribers) {
+            if (!s.offer(line)) {
+                // slow consumer: it has missed an event, cut it loose rather than stall the board
+                subscribers.remove(s);
+                s.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*Uniform grid over the board used to speed up point lookups.
+Responsible for the following:
+    - Splitting the board into cells the size of one note
+    - Remembering which notes (by NoteStore slot) cover each cell
+    - Answering "which notes contain (x, y)" without walking every note
+*/
+
+public class GridIndex {
+
+    private static final int[] NONE = new int[0];
+
+    // every note is exactly one cell in size
+    private final int cellWidth;
+    private final int cellHeight;
+
+    // only cells that actually hold notes are stored, large boards are mostly
+    // empty. Slots stay in insertion order so lookups come back in post order
+    private final SlotTable cells = new SlotTable();
+
+    public GridIndex(int cellWidth, int cellHeight) {
+        // guard against a zero sized note so we never divide by zero
+        this.cellWidth = Math.max(1, cellWidth);
+        this.cellHeight = Math.max(1, cellHeight);
+    }
+
+    // adds the note at (x, y) to every cell it covers (at most 2x2)
+    public void add(int slot, int x, int y) {
+        for (int cx = cellX(x); cx <= cellX(x + cellWidth - 1); cx++) {
+            for (int cy = cellY(y); cy <= cellY(y + cellHeight - 1); cy++) {
+                cells.append(Pin.pack(cx, cy), slot);
+            }
+        }
+    }
+
+    // removes it from every cell it covers, drops cells that become empty
+    public void remove(int slot, int x, int y) {
+        for (int cx = cellX(x); cx <= cellX(x + cellWidth - 1); cx++) {
+            for (int cy = cellY(y); cy <= cellY(y + cellHeight - 1); cy++) {
+                cells.removeSlot(Pin.pack(cx, cy), slot);
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+    }
+
+    // slots of all notes that contain the point, in the order they were posted
+    public int[] notesAt(int px, int py, NoteStore store) {
+        int[] cell = cells.get(Pin.pack(cellX(px), cellY(py)));
+        if (cell == null) {
+            return NONE;
+        }
+        int[] result = new int[cell.length];
+        int found = 0;
+        for (int slot : cell) {
+            int x = store.x(slot);
+            int y = store.y(slot);
+            if (px >= x && px < x + cellWidth && py >= y && py < y + cellHeight) {
+                result[found++] = slot;
+            }
+        }
+        return found == result.length ? result : java.util.Arrays.copyOf(result, found);
+    }
+
+    // entries in the cell holding the point: notesAt() returns at most this many, a
+    // cell only lists notes overlapping it (see QueryPlan)
+    public int cellSize(int px, int py) {
+        int[] cell = cells.get(Pin.pack(cellX(px), cellY(py)));
+        return cell == null ? 0 : cell.length;
+    }
+
+    // slot of the note whose top left corner is exactly (x, y), -1 if none
+    // (the POST overlap check)
+    public int noteAnchoredAt(int x, int y, NoteStore store) {
+        int[] cell = cells.get(Pin.pack(cellX(x), cellY(y)));
+        if (cell != null) {
+            for (int slot : cell) {
+                if (store.x(slot) == x && store.y(slot) == y) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        return cells.heapBytes();
+    }
+
+    // floorDiv so negative coordinates (never stored) simply land in empty cells
+    private int cellX(int x) {
+        return Math.floorDiv(x, cellWidth);
+    }
+
+    private int cellY(int y) {
+        return Math.floorDiv(y, cellHeight);
+    }
+}
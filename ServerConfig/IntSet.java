@@ -0,0 +1,121 @@
+import java.util.*;
+
+/*Primitive set of note slots (see NoteStore), used for TrigramIndex postings.
+Responsible for the following:
+    - Adding, removing and checking slots without boxing them
+      (open addressing with linear probing, at most half full)
+A posting of a common trigram can hold most of the board, so removing one slot
+has to be O(1) rather than a shift through an array.
+Not thread safe, Board only touches it under its lock.
+*/
+
+public class IntSet {
+
+    // slots are never negative
+    private static final int FREE = -1;
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] table = newTable(MIN_CAPACITY);
+    private int size = 0;
+
+    public boolean add(int slot) {
+        if ((size + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        int mask = table.length - 1;
+        int at = home(slot, mask);
+        while (table[at] != FREE) {
+            if (table[at] == slot) {
+                return false;
+            }
+            at = (at + 1) & mask;
+        }
+        table[at] = slot;
+        size++;
+        return true;
+    }
+
+    public boolean contains(int slot) {
+        int mask = table.length - 1;
+        for (int at = home(slot, mask); table[at] != FREE; at = (at + 1) & mask) {
+            if (table[at] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean remove(int slot) {
+        int mask = table.length - 1;
+        int at = home(slot, mask);
+        while (table[at] != slot) {
+            if (table[at] == FREE) {
+                return false;
+            }
+            at = (at + 1) & mask;
+        }
+        // pull later entries of the run back so lookups never stop early
+        int hole = at;
+        for (int next = (hole + 1) & mask; table[next] != FREE; next = (next + 1) & mask) {
+            int h = home(table[next], mask);
+            if (((next - h) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = FREE;
+        size--;
+        if (size * 8 < table.length && table.length > MIN_CAPACITY) {
+            resize(table.length / 2); // shaken off postings give their memory back
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // every slot, in no particular order
+    public int[] toArray() {
+        int[] all = new int[size];
+        int i = 0;
+        for (int slot : table) {
+            if (slot != FREE) {
+                all[i++] = slot;
+            }
+        }
+        return all;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        return 32 + 4L * table.length;
+    }
+
+    private void resize(int capacity) {
+        int[] old = table;
+        table = newTable(capacity);
+        int mask = capacity - 1;
+        for (int slot : old) {
+            if (slot != FREE) {
+                int at = home(slot, mask);
+                while (table[at] != FREE) {
+                    at = (at + 1) & mask;
+                }
+                table[at] = slot;
+            }
+        }
+    }
+
+    // slots are handed out densely, scatter them so neighbours don't form long runs
+    // (times an odd constant, the top bits pick the index)
+    private static int home(int slot, int mask) {
+        return (slot * 0x9E3779B9) >>> (32 - Integer.bitCount(mask));
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] t = new int[capacity];
+        Arrays.fill(t, FREE);
+        return t;
+    }
+}
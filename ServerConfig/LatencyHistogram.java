@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.*;
+
+/*Fixed-size latency histogram with about 1.5% precision (HdrHistogram style, much smaller).
+Responsible for the following:
+    - Recording nanosecond values from any number of threads without locking
+    - Answering percentiles (p50, p99, p99.9...), max and count
+    - Merging with another histogram, e.g. one per connection into a total
+Buckets are log-linear: 64 linear sub-buckets for every power of two, so the
+bucket a value lands in is at most 1/64 of the value wide. Any long value fits.
+*/
+
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(index(v));
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // smallest recorded value that at least fraction p (0..1) of values are at or below,
+    // reported as the top of its bucket so it never understates
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // values below 128 get a bucket each; above that the top 7 bits pick one of the
+    // 64 buckets for the value's power of two
+    private static int index(long v) {
+        int exponent = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        return exponent * SUB_BUCKETS + (int) (v >>> exponent);
+    }
+
+    private static long highestInBucket(int index) {
+        int exponent = Math.max(0, index / SUB_BUCKETS - 1);
+        long mantissa = index - (long) exponent * SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+}
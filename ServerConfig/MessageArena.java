@@ -0,0 +1,151 @@
+import java.nio.*;
+import java.nio.charset.*;
+
+/*Off-heap storage for note messages, used by NoteStore and NoteColumns.
+Responsible for the following:
+    - Copying every message as UTF-8 (followed by its case-folded form when that
+      differs) into direct buffers, outside the heap the GC has to walk
+    - Handing back one long per message that locates its bytes
+    - Reading messages back as Strings or bytes, and substring checks on the folded form
+    - Counting live and written bytes, so NoteStore knows when compacting pays off
+The arena is append only: written bytes never change, so a BoardSnapshot taken earlier
+can keep reading its messages while the board moves on, without any copying. Space
+freed by SHAKE and CLEAR is reclaimed by copying the live messages into a new arena
+(see NoteStore.compact); the old buffers are released once no snapshot refers to them.
+A reference packs the chunk (20 bits), position in the chunk (22 bits) and raw length
+(22 bits). Appending needs the board's write lock, reading doesn't need any lock.
+*/
+
+public class MessageArena {
+
+    // chunks start small (most boards are) and double up to the most a position can address
+    private static final int FIRST_CHUNK_BYTES = 1 << 16;
+    private static final int CHUNK_BYTES = 1 << 22;
+
+    // a message and its folded form have to fit in one chunk together
+    public static final int MAX_MESSAGE_BYTES = 1 << 20;
+
+    // replaced, never changed in place, when a chunk is added (readers don't lock)
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int used = 0; // bytes used in the last chunk
+    private int capacity = 0; // size of the last chunk
+    private long allocated = 0;
+    private long written = 0; // bytes appended over the arena's life
+    private long live = 0; // bytes of messages not freed yet
+
+    // stores the message bytes and, if it isn't the same, the folded form right after them
+    public long append(byte[] raw, byte[] folded) {
+        if (raw.length > MAX_MESSAGE_BYTES) {
+            throw new IllegalArgumentException("Message over " + MAX_MESSAGE_BYTES + " bytes");
+        }
+        int total = raw.length + (folded == null ? 0 : folded.length);
+        if (used + total > capacity) {
+            capacity = Math.min(CHUNK_BYTES, Math.max(FIRST_CHUNK_BYTES, capacity * 2));
+            while (capacity < total) {
+                capacity *= 2;
+            }
+            ByteBuffer[] grown = new ByteBuffer[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = ByteBuffer.allocateDirect(capacity);
+            chunks = grown;
+            used = 0;
+            allocated += capacity;
+        }
+        int chunk = chunks.length - 1;
+        ByteBuffer buffer = chunks[chunk];
+        buffer.put(used, raw);
+        if (folded != null) {
+            buffer.put(used + raw.length, folded);
+        }
+        long ref = ((long) chunk << 44) | ((long) used << 22) | raw.length;
+        used += total;
+        written += total;
+        live += total;
+        return ref;
+    }
+
+    // the message at 'ref' is gone (foldedLength -1 = it had no separate folded form)
+    public void free(long ref, int foldedLength) {
+        live -= length(ref) + Math.max(0, foldedLength);
+    }
+
+    // whether a message is short enough to store (at most 3 UTF-8 bytes per char)
+    public static boolean fits(String message) {
+        return message.length() <= MAX_MESSAGE_BYTES / 3
+                || message.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_BYTES;
+    }
+
+    public static int length(long ref) {
+        return (int) (ref & 0x3FFFFF);
+    }
+
+    public String string(long ref) {
+        return new String(bytes(ref), StandardCharsets.UTF_8);
+    }
+
+    public String foldedString(long ref, int foldedLength) {
+        return new String(foldedBytes(ref, foldedLength), StandardCharsets.UTF_8);
+    }
+
+    public byte[] bytes(long ref) {
+        byte[] out = new byte[length(ref)];
+        chunk(ref).get(position(ref), out);
+        return out;
+    }
+
+    public byte[] foldedBytes(long ref, int foldedLength) {
+        if (foldedLength < 0) {
+            return bytes(ref);
+        }
+        byte[] out = new byte[foldedLength];
+        chunk(ref).get(position(ref) + length(ref), out);
+        return out;
+    }
+
+    // whether the folded message contains the folded UTF-8 query (byte search is exact
+    // for UTF-8, a character sequence can't start in the middle of another one)
+    public boolean foldedContains(long ref, int foldedLength, byte[] query) {
+        ByteBuffer buffer = chunk(ref);
+        int from = position(ref) + (foldedLength < 0 ? 0 : length(ref));
+        int length = foldedLength < 0 ? length(ref) : foldedLength;
+        int last = from + length - query.length;
+        if (query.length == 0) {
+            return true;
+        }
+        byte first = query[0];
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < query.length && buffer.get(i + j) == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // off-heap bytes held by this arena
+    public long allocatedBytes() {
+        return allocated;
+    }
+
+    public long liveBytes() {
+        return live;
+    }
+
+    public long writtenBytes() {
+        return written;
+    }
+
+    private ByteBuffer chunk(long ref) {
+        return chunks[(int) (ref >>> 44)];
+    }
+
+    private static int position(long ref) {
+        return (int) ((ref >>> 22) & 0x3FFFFF);
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/*Server-wide counters behind the STATS command.
+Responsible for the following:
+    - Per-command counts, error counts and latency (time spent in ProtocolParser.parse,
+      or parseFrame for binary connections)
+    - How long commands wait for, and hold, the board lock
+    - Connection gauge and bytes read from / written to clients, for both server modes
+    - Rendering all of it, plus every board's note and pin counts, heap and off-heap
+      memory and its own command counts (see Board.appendStats), as text
+STATS answers with one STAT line per value in the Prometheus text format, so a scraper
+only has to strip the "STAT " prefix, then SUCCESS STATS_COMPLETE:
+    STAT bboard_commands_total{command="GET"} 1234
+    STAT bboard_command_latency_seconds{command="GET",quantile="0.99"} 0.000412
+    STAT bboard_notes{board="default"} 120
+Latencies are summaries (p50 / p99 / p99.9 / max) over everything since startup.
+Everything here is lock free: commands only bump counters and histogram buckets.
+*/
+
+public class Metrics {
+
+    // command kinds, indexes into the arrays below. OTHER is anything unknown or empty
+    static final int POST = 0;
+    static final int GET = 1;
+    static final int PIN = 2;
+    static final int UNPIN = 3;
+    static final int SHAKE = 4;
+    static final int CLEAR = 5;
+    static final int RESIZE = 6;
+    static final int SUBSCRIBE = 7;
+    static final int UNSUBSCRIBE = 8;
+    static final int DISCONNECT = 9;
+    static final int STATS = 10;
+    static final int USE = 11;
+    static final int EXPLAIN = 12;
+    static final int OTHER = 13;
+    static final String[] COMMANDS = {"POST", "GET", "PIN", "UNPIN", "SHAKE", "CLEAR", "RESIZE",
+            "SUBSCRIBE", "UNSUBSCRIBE", "DISCONNECT", "STATS", "USE", "EXPLAIN", "OTHER"};
+
+    private static final AtomicLongArray commands = new AtomicLongArray(COMMANDS.length);
+    private static final AtomicLongArray errors = new AtomicLongArray(COMMANDS.length);
+    private static final LatencyHistogram[] latency = new LatencyHistogram[COMMANDS.length];
+
+    // StampedLock waits by mode, and how long each write lock was held (reads share the
+    // lock, so it's the write holds that everyone else waits behind)
+    static final LatencyHistogram readLockWait = new LatencyHistogram();
+    static final LatencyHistogram writeLockWait = new LatencyHistogram();
+    static final LatencyHistogram writeLockHold = new LatencyHistogram();
+
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final AtomicLong connectionsTotal = new AtomicLong();
+    private static final AtomicLong connectionErrors = new AtomicLong(); // ended by an unexpected exception
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+
+    static {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    // 'board' is the one the command ran against, it keeps its own share of the counts
+    static void command(Board board, int kind, long nanos, String reply) {
+        command(board, kind, nanos, reply.startsWith("ERROR"));
+    }
+
+    static void command(Board board, int kind, long nanos, boolean error) {
+        commands.incrementAndGet(kind);
+        latency[kind].record(nanos);
+        if (error) {
+            errors.incrementAndGet(kind);
+        }
+        board.recordCommand(kind, nanos, error);
+    }
+
+    static void connectionOpened() {
+        connections.incrementAndGet();
+        connectionsTotal.incrementAndGet();
+    }
+
+    static void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    static void connectionError() {
+        connectionErrors.incrementAndGet();
+    }
+
+    static void bytesIn(long n) {
+        bytesIn.addAndGet(n);
+    }
+
+    static void bytesOut(long n) {
+        bytesOut.addAndGet(n);
+    }
+
+    // reply to STATS
+    static String render() {
+        StringBuilder sb = new StringBuilder();
+        value(sb, "bboard_connections", connections.get());
+        value(sb, "bboard_connections_total", connectionsTotal.get());
+        value(sb, "bboard_connection_errors_total", connectionErrors.get());
+        value(sb, "bboard_bytes_in_total", bytesIn.get());
+        value(sb, "bboard_bytes_out_total", bytesOut.get());
+        List<Board> boards = Boards.all();
+        value(sb, "bboard_boards", boards.size());
+        for (Board board : boards) {
+            board.appendStats(sb);
+        }
+
+        for (int i = 0; i < COMMANDS.length; i++) {
+            String label = "command=\"" + COMMANDS[i] + "\"";
+            sb.append("STAT bboard_commands_total{").append(label).append("} ").append(commands.get(i)).append("\n");
+            sb.append("STAT bboard_command_errors_total{").append(label).append("} ").append(errors.get(i)).append("\n");
+            summary(sb, "bboard_command_latency_seconds", label, latency[i]);
+        }
+        summary(sb, "bboard_lock_wait_seconds", "mode=\"read\"", readLockWait);
+        summary(sb, "bboard_lock_wait_seconds", "mode=\"write\"", writeLockWait);
+        summary(sb, "bboard_lock_hold_seconds", "mode=\"write\"", writeLockHold);
+        sb.append("SUCCESS STATS_COMPLETE");
+        return sb.toString();
+    }
+
+    static void value(StringBuilder sb, String name, long value) {
+        sb.append("STAT ").append(name).append(" ").append(value).append("\n");
+    }
+
+    static void value(StringBuilder sb, String name, String label, long value) {
+        sb.append("STAT ").append(name).append("{").append(label).append("} ").append(value).append("\n");
+    }
+
+    static void summary(StringBuilder sb, String name, String label, LatencyHistogram h) {
+        for (String q : new String[] {"0.5", "0.99", "0.999"}) {
+            sb.append("STAT ").append(name).append("{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                    .append(seconds(h.percentile(Double.parseDouble(q)))).append("\n");
+        }
+        sb.append("STAT ").append(name).append("_max{").append(label).append("} ").append(seconds(h.max())).append("\n");
+        sb.append("STAT ").append(name).append("_count{").append(label).append("} ").append(h.count()).append("\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*Optional non-blocking server mode (java BBoard --nio ...)
+Responsible for the following:
+    - Accepting clients on a ServerSocketChannel
+    - Spreading connections over a small number of selector event loops
+    - Framing incoming bytes into lines and handing them to ProtocolParser
+    - Buffering replies per connection so nothing ever blocks a loop, a GET one
+      chunk at a time as the socket takes it (see BoardSnapshot.textChunks)
+    - Not reading from a client that sends requests faster than it reads the replies,
+      until those replies are written
+    - Getting pushed EVENT lines (SUBSCRIBE) from the board's thread onto the right loop
+    - Counting connections and bytes in and out for STATS
+The text protocol is exactly the same as the ClientHandler one, only the
+threading model is different (a few loops instead of one thread per client).
+*/
+
+public class NioServer {
+
+    // same charset and line ending the PrintWriter / BufferedReader pair uses
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(CHARSET);
+    // a connection with this many replies waiting stops being read (well under
+    // EventHub.OUTBOUND_CAPACITY, which drops a subscriber that falls behind)
+    private static final int MAX_QUEUED_REPLIES = 64;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // blocks forever, acceptor runs on the calling thread
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        System.out.println("Serving running on port " + port + " (nio, " + loops.length + " loops)");
+
+        int next = 0;
+        while (true) {
+            SocketChannel client = server.accept(); // blocking accept is fine here
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // round robin so one loop doesn't end up with every client
+            loops[next].register(client);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // one selector thread serving many connections
+    private static class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pushed = new ConcurrentLinkedQueue<>(); // connections with new events
+        private final Queue<Connection> dropped = new ConcurrentLinkedQueue<>(); // closed by another thread
+
+        EventLoop(int id) throws IOException {
+            super("nio-loop-" + id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        // called from the acceptor thread, the loop does the actual registering
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // called from whichever thread published the event
+        void schedulePush(Connection conn) {
+            pushed.add(conn);
+            selector.wakeup();
+        }
+
+        // called from the publishing thread when EventHub drops a slow subscriber: the
+        // loop owns the connection's state, so it does the closing
+        void scheduleClose(Connection conn) {
+            dropped.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    drainDropped();
+                    drainPushed();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (IOException e) {
+                            // same as ClientHandler, a broken client only loses its own connection
+                            conn.close();
+                        } catch (Exception e) {
+                            Metrics.connectionError();
+                            e.printStackTrace();
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                Connection conn = null;
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    conn = new Connection(this, channel, key);
+                    key.attach(conn);
+                    conn.sendHandshake();
+                } catch (IOException e) {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                    try {channel.close();} catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private void drainDropped() {
+            Connection conn;
+            while ((conn = dropped.poll()) != null) {
+                conn.close();
+            }
+        }
+
+        private void drainPushed() {
+            Connection conn;
+            while ((conn = pushed.poll()) != null) {
+                try {
+                    conn.writePushed();
+                } catch (Exception e) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    // per client state: read buffer, partial line, queued replies, pushed events
+    private static class Connection implements EventHub.Subscriber {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        // ByteBuffers ready to go, or a GET still being serialised (BoardSnapshot.TextChunks)
+        private final Deque<Object> writeQueue = new ArrayDeque<>();
+        private boolean skipLineFeed = false; // last line ended in \r, so a following \n belongs to it
+        private boolean closeWhenFlushed = false;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        // filled by the publishing thread, emptied by the loop
+        private final BlockingQueue<String> pushes = new ArrayBlockingQueue<>(EventHub.OUTBOUND_CAPACITY);
+        private final AtomicBoolean pushScheduled = new AtomicBoolean(false);
+        private final Session session = new Session(this);
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            Metrics.connectionOpened();
+        }
+
+        @Override
+        public boolean offer(String line) {
+            if (!pushes.offer(line)) {
+                return false;
+            }
+            // only wake the loop once per batch of events
+            if (pushScheduled.compareAndSet(false, true)) {
+                loop.schedulePush(this);
+            }
+            return true;
+        }
+
+        // on the loop thread: move pushed events behind whatever replies are queued
+        void writePushed() throws IOException {
+            pushScheduled.set(false);
+            if (!key.isValid()) {
+                return;
+            }
+            String line;
+            while ((line = pushes.poll()) != null) {
+                queueLine(line);
+            }
+            // the socket isn't keeping up either, same rule as a full push queue
+            if (writeQueue.size() > EventHub.OUTBOUND_CAPACITY) {
+                close();
+                return;
+            }
+            flush();
+        }
+
+        void sendHandshake() throws IOException {
+            for (String line : Boards.defaultBoard().handshakeLines()) {
+                queueLine(line);
+            }
+            flush();
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                // the client is gone, answer what it sent (at most one buffer) without
+                // waiting for the replies to drain. readLine hands back an unterminated
+                // last line too
+                handleBuffered(Integer.MAX_VALUE);
+                if (partialLine.size() > 0 && !closeWhenFlushed) {
+                    handleLine(takeLine());
+                }
+                closeWhenFlushed = true;
+                flush();
+                return;
+            }
+            Metrics.bytesIn(read);
+            handleBuffered(MAX_QUEUED_REPLIES);
+            // everything in this read has been answered, push it out in one go
+            flush();
+        }
+
+        // answers the lines in readBuffer until 'limit' replies are queued; the rest stays
+        // in the buffer until flush() has written those. readBuffer is left ready for reading
+        private void handleBuffered(int limit) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closeWhenFlushed && writeQueue.size() < limit) {
+                byte b = readBuffer.get();
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLineFeed = (b == '\r');
+                    handleLine(takeLine());
+                } else {
+                    partialLine.write(b);
+                }
+            }
+            readBuffer.compact();
+        }
+
+        void onWritable() throws IOException {
+            flush();
+        }
+
+        private String takeLine() {
+            String line = new String(partialLine.toByteArray(), CHARSET);
+            partialLine.reset();
+            return line;
+        }
+
+        private void handleLine(String line) {
+            // GET is queued as its snapshot, the text is made when the socket wants more
+            BoardSnapshot listing = ProtocolParser.parseListing(line, session);
+            if (listing != null) {
+                writeQueue.add(listing.textChunks());
+            } else {
+                queueLine(ProtocolParser.parse(line, session));
+            }
+
+            // client has completed their request and wishes to disconnect
+            if (line.equals("DISCONNECT")) {
+                closeWhenFlushed = true;
+            }
+        }
+
+        private void queueLine(String line) {
+            byte[] body = line.getBytes(CHARSET);
+            ByteBuffer buf = ByteBuffer.allocate(body.length + NEWLINE.length);
+            buf.put(body).put(NEWLINE).flip();
+            writeQueue.add(buf);
+        }
+
+        // writes as much as the socket takes, waits for OP_WRITE for the rest. Reading
+        // stops while MAX_QUEUED_REPLIES are waiting and picks up with the lines left over
+        private void flush() throws IOException {
+            while (true) {
+                if (writeQueue.isEmpty()) {
+                    if (readBuffer.position() == 0 || closeWhenFlushed) {
+                        break;
+                    }
+                    handleBuffered(MAX_QUEUED_REPLIES); // lines read before reading stopped
+                    continue;
+                }
+                if (writeQueue.peek() instanceof BoardSnapshot.TextChunks chunks) {
+                    // next piece in front of the rest of the GET, the line ending after the last
+                    String chunk = chunks.next();
+                    if (chunk == null) {
+                        writeQueue.poll();
+                        writeQueue.addFirst(ByteBuffer.wrap(NEWLINE));
+                    } else {
+                        writeQueue.addFirst(ByteBuffer.wrap(chunk.getBytes(CHARSET)));
+                    }
+                    continue;
+                }
+                ByteBuffer head = (ByteBuffer) writeQueue.peek();
+                Metrics.bytesOut(channel.write(head));
+                if (head.hasRemaining()) {
+                    key.interestOps(writeQueue.size() < MAX_QUEUED_REPLIES
+                            ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            if (closeWhenFlushed) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // also used by EventHub to drop a slow subscriber, from the publishing thread:
+        // that close is handed to the loop, which is the only one touching the session
+        @Override
+        public void close() {
+            if (Thread.currentThread() != loop) {
+                loop.scheduleClose(this);
+                return;
+            }
+            if (closed.compareAndSet(false, true)) {
+                Metrics.connectionClosed();
+            }
+            session.close();
+            key.cancel();
+            try {channel.close();} catch (IOException ignored) {}
+        }
+    }
+}
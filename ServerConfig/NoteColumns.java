@@ -0,0 +1,165 @@
+import java.nio.charset.*;
+import java.util.*;
+
+/*Frozen notes in post order, one array per field: what a BoardSnapshot holds.
+Responsible for the following:
+    - Position, colour id, pins and message reference of every note, by index
+    - Writing a note as GET lines or into a binary NOTES frame
+    - Building a board's notes from a snapshot file (Builder), for Board.restore
+Messages stay in the MessageArena they were written to. The arena never changes
+bytes once written, so freezing the board copies a few primitives per note and
+no text at all. Pin arrays are copy-on-write in NoteStore and shared as is.
+*/
+
+public class NoteColumns {
+
+    static final long[] NO_PINS = new long[0];
+
+    public final int size;
+    private final int[] xs;
+    private final int[] ys;
+    private final byte[] colourIds;
+    private final long[][] pins; // null = no pins
+    private final long[] texts; // MessageArena references
+    private final int[] foldedLengths; // -1 = folded form is the message itself
+    final MessageArena arena;
+
+    NoteColumns(int size, int[] xs, int[] ys, byte[] colourIds, long[][] pins, long[] texts, int[] foldedLengths,
+            MessageArena arena) {
+        this.size = size;
+        this.xs = xs;
+        this.ys = ys;
+        this.colourIds = colourIds;
+        this.pins = pins;
+        this.texts = texts;
+        this.foldedLengths = foldedLengths;
+        this.arena = arena;
+    }
+
+    public int x(int i) {
+        return xs[i];
+    }
+
+    public int y(int i) {
+        return ys[i];
+    }
+
+    public int colourId(int i) {
+        return colourIds[i] & 0xFF;
+    }
+
+    // packed pins (see Pin), never null
+    public long[] pins(int i) {
+        return pins[i] == null ? NO_PINS : pins[i];
+    }
+
+    long text(int i) {
+        return texts[i];
+    }
+
+    int foldedLength(int i) {
+        return foldedLengths[i];
+    }
+
+    public String message(int i) {
+        return arena.string(texts[i]);
+    }
+
+    public String foldedMessage(int i) {
+        return arena.foldedString(texts[i], foldedLengths[i]);
+    }
+
+    // UTF-8 message, straight from the arena (snapshot files store exactly this)
+    public byte[] messageBytes(int i) {
+        return arena.bytes(texts[i]);
+    }
+
+    // NOTE line followed by its PIN lines, the way GET lists every note
+    public void appendProtocolLines(int i, StringBuilder sb, Colours colours) {
+        sb.append("NOTE ").append(xs[i]).append(" ").append(ys[i]).append(" ")
+                .append(colours.name(colourIds[i])).append(" ").append(message(i)).append("\n");
+        for (long p : pins(i)) {
+            sb.append("PIN ").append(Pin.x(p)).append(" ").append(Pin.y(p)).append("\n");
+        }
+    }
+
+    // same note in a binary NOTES reply (see WireCodec), pins relative to the note
+    public void appendFrame(int i, WireCodec.Out out, Colours colours, Map<String, Integer> colourIndex) {
+        out.varint(xs[i]).varint(ys[i]).colour(colours.name(colourIds[i]), colourIndex).string(message(i));
+        long[] p = pins(i);
+        out.varint(p.length);
+        for (long pin : p) {
+            out.zigzag(Pin.x(pin) - xs[i]).zigzag(Pin.y(pin) - ys[i]);
+        }
+    }
+
+    // folded form to store next to a message, null when folding doesn't change it
+    static byte[] folded(String message) {
+        String folded = message.toLowerCase();
+        return folded.equals(message) ? null : folded.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // same from the UTF-8 bytes alone, without decoding the common all-lowercase ASCII case
+    static byte[] folded(byte[] raw) {
+        for (byte b : raw) {
+            if (b < 0 || (b >= 'A' && b <= 'Z')) {
+                return folded(new String(raw, StandardCharsets.UTF_8));
+            }
+        }
+        return null;
+    }
+
+    // notes in post order from a snapshot file, into a new arena the restored board keeps using
+    public static class Builder {
+
+        private int size = 0;
+        private int[] xs;
+        private int[] ys;
+        private byte[] colourIds;
+        private long[][] pins;
+        private long[] texts;
+        private int[] foldedLengths;
+        private final MessageArena arena = new MessageArena();
+
+        public Builder(int expected) {
+            int capacity = Math.max(1, expected);
+            xs = new int[capacity];
+            ys = new int[capacity];
+            colourIds = new byte[capacity];
+            pins = new long[capacity][];
+            texts = new long[capacity];
+            foldedLengths = new int[capacity];
+        }
+
+        // adds a note, returns its index for addPin
+        public int add(int x, int y, int colourId, byte[] message) {
+            if (size == xs.length) {
+                int capacity = size * 2;
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                colourIds = Arrays.copyOf(colourIds, capacity);
+                pins = Arrays.copyOf(pins, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+                foldedLengths = Arrays.copyOf(foldedLengths, capacity);
+            }
+            byte[] folded = folded(message);
+            xs[size] = x;
+            ys[size] = y;
+            colourIds[size] = (byte) colourId;
+            texts[size] = arena.append(message, folded);
+            foldedLengths[size] = folded == null ? -1 : folded.length;
+            return size++;
+        }
+
+        public void addPin(int i, int x, int y) {
+            long[] current = pins[i] == null ? NO_PINS : pins[i];
+            long[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = Pin.pack(x, y);
+            pins[i] = next;
+        }
+
+        public NoteColumns build() {
+            return new NoteColumns(size, xs, ys, colourIds, pins, texts, foldedLengths, arena);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*Board's live notes, stored as columns of primitives rather than one object per note.
+Responsible for the following:
+    - Keeping x, y, colour id, pins and a message reference in arrays indexed by slot
+      (a note's slot is its id for the indexes, see GridIndex, TrigramIndex, ColourIndex)
+    - Holding message bytes off heap in a MessageArena, compacting it once most of it is garbage
+    - Handing slots freed by SHAKE back out to later POSTs, so the arrays stay dense
+    - Walking notes in post order (a linked list through the slots) and freezing them
+      into NoteColumns for a BoardSnapshot
+    - Keeping the set of unpinned notes up to date as pins come and go, so SHAKE
+      only ever looks at the notes it removes
+    - Telling whether a slot still holds a given note (slot plus post sequence),
+      so a GET cursor can resume right after the note it stopped at
+A million notes are a dozen arrays here instead of a million Notes, Strings and
+pin lists, so the heap the GC traces stays small and flat however full the board gets.
+Not thread safe, Board only touches it under its lock.
+*/
+
+public class NoteStore {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // heap cost of one slot across the columns below, for STATS
+    private static final int SLOT_BYTES = 4 + 4 + 1 + 8 + 8 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    // compact the arena when at least this much of it is dead and more is dead than live
+    private static final long MIN_GARBAGE_BYTES = 1 << 20;
+
+    private int[] xs = new int[MIN_CAPACITY];
+    private int[] ys = new int[MIN_CAPACITY];
+    private byte[] colourIds = new byte[MIN_CAPACITY];
+    private long[][] pins = new long[MIN_CAPACITY][]; // copy-on-write, null = unpinned
+    private long[] texts = new long[MIN_CAPACITY]; // MessageArena references
+    private int[] foldedLengths = new int[MIN_CAPACITY]; // -1 = folded form is the message itself
+    private long[] seqs = new long[MIN_CAPACITY]; // post order, only ever grows, -1 = free slot
+    private int[] next = new int[MIN_CAPACITY]; // post order list, -1 ends it
+    private int[] prev = new int[MIN_CAPACITY];
+
+    private int head = -1;
+    private int tail = -1;
+    private int size = 0;
+    private int highWater = 0; // slots below this have been handed out at some point
+    private long nextSeq = 0;
+    private int pinned = 0; // notes with at least one pin
+
+    // unpinned notes in no particular order, and where each slot sits in that array
+    // (-1 = pinned or free), so a note joins or leaves in O(1)
+    private int[] unpinned = new int[MIN_CAPACITY];
+    private int[] unpinnedAt = new int[MIN_CAPACITY];
+    private int unpinnedCount = 0;
+
+    // freed slots, reused newest first
+    private int[] free = new int[MIN_CAPACITY];
+    private int freeCount = 0;
+    // off while Board builds indexes in the background, which tell notes apart by slot
+    private boolean recycling = true;
+
+    private MessageArena arena = new MessageArena();
+
+    // sequence numbers are only comparable within one store: a restored board numbers its
+    // notes afresh, so cursors carry this and ones from before a restart are turned away
+    private final int epoch = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+
+    public NoteStore() {
+    }
+
+    // a store holding exactly the given notes, in slots 0..size-1, sharing their arena
+    public static NoteStore of(NoteColumns notes) {
+        NoteStore store = new NoteStore();
+        store.arena = notes.arena;
+        store.ensureCapacity(notes.size);
+        for (int i = 0; i < notes.size; i++) {
+            int slot = store.link();
+            store.xs[slot] = notes.x(i);
+            store.ys[slot] = notes.y(i);
+            store.colourIds[slot] = (byte) notes.colourId(i);
+            long[] p = notes.pins(i);
+            store.pins[slot] = p.length == 0 ? null : p;
+            if (p.length == 0) {
+                store.joinUnpinned(slot);
+            } else {
+                store.pinned++;
+            }
+            store.texts[slot] = notes.text(i);
+            store.foldedLengths[slot] = notes.foldedLength(i);
+        }
+        return store;
+    }
+
+    // adds a note after every other one, returns its slot
+    public int add(int x, int y, int colourId, String message) {
+        byte[] raw = message.getBytes(StandardCharsets.UTF_8);
+        byte[] folded = NoteColumns.folded(message);
+        int slot = link();
+        xs[slot] = x;
+        ys[slot] = y;
+        colourIds[slot] = (byte) colourId;
+        pins[slot] = null;
+        texts[slot] = arena.append(raw, folded);
+        foldedLengths[slot] = folded == null ? -1 : folded.length;
+        joinUnpinned(slot);
+        return slot;
+    }
+
+    // takes the note out; its slot may be handed to the next add
+    public void remove(int slot) {
+        arena.free(texts[slot], foldedLengths[slot]);
+        seqs[slot] = -1;
+        if (pins[slot] != null) {
+            pins[slot] = null;
+            pinned--;
+        } else {
+            leaveUnpinned(slot);
+        }
+        int before = prev[slot];
+        int after = next[slot];
+        if (before < 0) {
+            head = after;
+        } else {
+            next[before] = after;
+        }
+        if (after < 0) {
+            tail = before;
+        } else {
+            prev[after] = before;
+        }
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    // drops every note, the columns and the arena start over small
+    public void clear() {
+        xs = new int[MIN_CAPACITY];
+        ys = new int[MIN_CAPACITY];
+        colourIds = new byte[MIN_CAPACITY];
+        pins = new long[MIN_CAPACITY][];
+        texts = new long[MIN_CAPACITY];
+        foldedLengths = new int[MIN_CAPACITY];
+        seqs = new long[MIN_CAPACITY];
+        next = new int[MIN_CAPACITY];
+        prev = new int[MIN_CAPACITY];
+        unpinnedAt = new int[MIN_CAPACITY];
+        head = -1;
+        tail = -1;
+        size = 0;
+        highWater = 0;
+        pinned = 0;
+        unpinned = new int[MIN_CAPACITY];
+        unpinnedCount = 0;
+        free = new int[MIN_CAPACITY];
+        freeCount = 0;
+        arena = new MessageArena(); // snapshots still using the old one keep it alive
+    }
+
+    // after removals: copies the live messages into a new arena when that frees a lot.
+    // Returns whether it did
+    public boolean compactIfWasteful() {
+        long garbage = arena.writtenBytes() - arena.liveBytes();
+        if (garbage < MIN_GARBAGE_BYTES || garbage < arena.liveBytes()) {
+            return false;
+        }
+        MessageArena compacted = new MessageArena();
+        for (int slot = head; slot >= 0; slot = next[slot]) {
+            long ref = texts[slot];
+            byte[] folded = foldedLengths[slot] < 0 ? null : arena.foldedBytes(ref, foldedLengths[slot]);
+            texts[slot] = compacted.append(arena.bytes(ref), folded);
+        }
+        arena = compacted;
+        return true;
+    }
+
+    public void setRecycling(boolean recycling) {
+        this.recycling = recycling;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // first slot in post order, -1 if empty
+    public int first() {
+        return head;
+    }
+
+    // slot after 'slot' in post order, -1 at the end
+    public int next(int slot) {
+        return next[slot];
+    }
+
+    public int x(int slot) {
+        return xs[slot];
+    }
+
+    public int y(int slot) {
+        return ys[slot];
+    }
+
+    public int colourId(int slot) {
+        return colourIds[slot] & 0xFF;
+    }
+
+    // position in post order, only meaningful compared with another note's
+    public long seq(int slot) {
+        return seqs[slot];
+    }
+
+    // true if 'slot' still holds the note that had post sequence 'seq' (not removed, not reused)
+    public boolean holds(int slot, long seq) {
+        return slot >= 0 && slot < highWater && seqs[slot] == seq;
+    }
+
+    public int epoch() {
+        return epoch;
+    }
+
+    public String message(int slot) {
+        return arena.string(texts[slot]);
+    }
+
+    public String foldedMessage(int slot) {
+        return arena.foldedString(texts[slot], foldedLengths[slot]);
+    }
+
+    // case-insensitive substring check, 'foldedQuery' already folded and UTF-8 encoded
+    public boolean messageContains(int slot, byte[] foldedQuery) {
+        return arena.foldedContains(texts[slot], foldedLengths[slot], foldedQuery);
+    }
+
+    public boolean isPinned(int slot) {
+        return pins[slot] != null;
+    }
+
+    // notes with at least one pin
+    public int pinnedCount() {
+        return pinned;
+    }
+
+    public int unpinnedCount() {
+        return unpinnedCount;
+    }
+
+    // every unpinned slot, in no particular order (what a SHAKE removes)
+    public int[] unpinnedSlots() {
+        return Arrays.copyOf(unpinned, unpinnedCount);
+    }
+
+    public long[] pins(int slot) {
+        return pins[slot] == null ? NoteColumns.NO_PINS : pins[slot];
+    }
+
+    public void addPin(int slot, int x, int y) {
+        long[] current = pins(slot);
+        long[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = Pin.pack(x, y);
+        if (pins[slot] == null) {
+            pinned++;
+            leaveUnpinned(slot);
+        }
+        pins[slot] = grown;
+    }
+
+    // how many of the note's pins sit at the coordinate (pinning twice stacks)
+    public int pinsAt(int slot, int x, int y) {
+        long pin = Pin.pack(x, y);
+        int count = 0;
+        for (long p : pins(slot)) {
+            if (p == pin) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // takes every pin at the coordinate off the note, returns how many there were
+    public int removePinAt(int slot, int x, int y) {
+        int removed = pinsAt(slot, x, y);
+        if (removed == 0) {
+            return 0;
+        }
+        long pin = Pin.pack(x, y);
+        long[] current = pins[slot];
+        if (removed == current.length) {
+            pins[slot] = null;
+            pinned--;
+            joinUnpinned(slot);
+            return removed;
+        }
+        long[] kept = new long[current.length - removed];
+        int i = 0;
+        for (long p : current) {
+            if (p != pin) {
+                kept[i++] = p;
+            }
+        }
+        pins[slot] = kept;
+        return removed;
+    }
+
+    // every note in post order, for a BoardSnapshot
+    public NoteColumns freeze() {
+        int[] all = new int[size];
+        int i = 0;
+        for (int slot = head; slot >= 0; slot = next[slot]) {
+            all[i++] = slot;
+        }
+        return freeze(all, size);
+    }
+
+    // the first 'count' slots given, in that order (filtered GETs)
+    public NoteColumns freeze(int[] slots, int count) {
+        int[] x = new int[count];
+        int[] y = new int[count];
+        byte[] colour = new byte[count];
+        long[][] p = new long[count][];
+        long[] text = new long[count];
+        int[] folded = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slots[i];
+            x[i] = xs[slot];
+            y[i] = ys[slot];
+            colour[i] = colourIds[slot];
+            p[i] = pins[slot];
+            text[i] = texts[slot];
+            folded[i] = foldedLengths[slot];
+        }
+        return new NoteColumns(count, x, y, colour, p, text, folded, arena);
+    }
+
+    // sorts the first 'count' slots into post order (index lookups that aren't already)
+    public void sortByPostOrder(int[] slots, int count) {
+        if (count < 2) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            oldest = Math.min(oldest, seqs[slots[i]]);
+        }
+        long[] keyed = new long[count];
+        for (int i = 0; i < count; i++) {
+            // seq relative to the oldest in the high half (no board sees 2^31 posts while
+            // one note stays up), slot in the low half
+            keyed[i] = ((seqs[slots[i]] - oldest) << 32) | slots[i];
+        }
+        Arrays.sort(keyed);
+        for (int i = 0; i < count; i++) {
+            slots[i] = (int) keyed[i];
+        }
+    }
+
+    // heap held by the columns and pin arrays
+    public long heapBytes() {
+        return (long) xs.length * SLOT_BYTES + 4L * free.length + pinned * 24L;
+    }
+
+    // direct memory held by the message arena
+    public long offHeapBytes() {
+        return arena.allocatedBytes();
+    }
+
+    // bytes of message text (and folded text) still in use
+    public long messageBytes() {
+        return arena.liveBytes();
+    }
+
+    private void joinUnpinned(int slot) {
+        if (unpinnedCount == unpinned.length) {
+            unpinned = Arrays.copyOf(unpinned, unpinnedCount * 2);
+        }
+        unpinnedAt[slot] = unpinnedCount;
+        unpinned[unpinnedCount++] = slot;
+    }
+
+    // the last unpinned slot moves into the hole
+    private void leaveUnpinned(int slot) {
+        int at = unpinnedAt[slot];
+        int last = unpinned[--unpinnedCount];
+        unpinned[at] = last;
+        unpinnedAt[last] = at;
+        unpinnedAt[slot] = -1;
+    }
+
+    // a slot for a new note, linked in at the end of post order
+    private int link() {
+        int slot;
+        if (recycling && freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            ensureCapacity(highWater + 1);
+            slot = highWater++;
+        }
+        seqs[slot] = nextSeq++;
+        next[slot] = -1;
+        prev[slot] = tail;
+        if (tail < 0) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+        size++;
+        return slot;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) {
+            return;
+        }
+        int grown = Math.max(capacity, xs.length + (xs.length >> 1));
+        xs = Arrays.copyOf(xs, grown);
+        ys = Arrays.copyOf(ys, grown);
+        colourIds = Arrays.copyOf(colourIds, grown);
+        pins = Arrays.copyOf(pins, grown);
+        texts = Arrays.copyOf(texts, grown);
+        foldedLengths = Arrays.copyOf(foldedLengths, grown);
+        seqs = Arrays.copyOf(seqs, grown);
+        next = Arrays.copyOf(next, grown);
+        prev = Arrays.copyOf(prev, grown);
+        unpinnedAt = Arrays.copyOf(unpinnedAt, grown);
+    }
+}
@@ -1,11 +1,20 @@
-//Setting up class for Pin, this represents a pin at a specific coordinate
+//Pins are kept as one packed long each (x in the high half, y in the low half), in a
+//note's pin array in NoteStore, as PinIndex keys and as GridIndex cell keys, instead of one object per pin
 
 public class Pin{
-    public final int x;
-    public final int y;
 
-    public Pin(int x, int y){
-        this.x = x;
-        this.y = y;
+    private Pin(){
     }
-}
\ No newline at end of file
+
+    public static long pack(int x, int y){
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public static int x(long pin){
+        return (int) (pin >> 32);
+    }
+
+    public static int y(long pin){
+        return (int) pin;
+    }
+}
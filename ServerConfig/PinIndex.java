@@ -0,0 +1,61 @@
+import java.util.*;
+
+/*Board-wide map from a pin coordinate to the notes pinned there.
+Responsible for the following:
+    - Finding the notes UNPIN has to touch without looking at any other note
+    - Listing every pinned coordinate for GET PINS without walking the board
+Keys are packed coordinates (see Pin) in a primitive SlotTable. Each value holds
+the NoteStore slots with at least one pin at that coordinate, in post order, the
+same order the grid hands notes back in. Not thread safe, Board only touches it
+under its lock.
+*/
+
+public class PinIndex {
+
+    private final SlotTable pinned = new SlotTable();
+
+    // slots pinned at (x, y), in post order; null if none
+    public int[] notesAt(int x, int y) {
+        return pinned.get(Pin.pack(x, y));
+    }
+
+    // after PIN: every covering note (in post order) now has a pin at (x, y)
+    public void set(int x, int y, int[] covering) {
+        pinned.put(Pin.pack(x, y), covering);
+    }
+
+    // after UNPIN took every pin at (x, y) off 'slot'
+    public void remove(int x, int y, int slot) {
+        pinned.removeSlot(Pin.pack(x, y), slot);
+    }
+
+    // rebuilding after a restore: notes must come in post order
+    public void add(int slot, long[] pins) {
+        for (long p : pins) {
+            int[] at = pinned.get(p);
+            if (at == null || at[at.length - 1] != slot) { // a note pinned twice at one spot is listed once
+                pinned.append(p, slot);
+            }
+        }
+    }
+
+    public void clear() {
+        pinned.clear();
+    }
+
+    public int size() {
+        return pinned.size();
+    }
+
+    // every pinned coordinate, packed, sorted so GET PINS comes out in a stable order
+    public long[] coordinates() {
+        long[] all = pinned.keys();
+        Arrays.sort(all);
+        return all;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        return pinned.heapBytes();
+    }
+}
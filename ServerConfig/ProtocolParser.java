@@ -2,201 +2,564 @@
     - Parsing client commands
     - double checking and validating syntax
     - success or error strings set up
+    - timing and counting every command for STATS (see Metrics)
+    - the same commands as binary frames, for connections that negotiated them (see WireCodec)
+    - USE <board>, switching a connection to another of the server's boards (see Boards)
+    - EXPLAIN GET ..., how the board would answer that GET (see QueryPlan)
+Lines are read in place with a CommandCursor (no split, no per-token Strings)
+and every fixed error reply is built once up front.
 */
 
 //class handles parsing a single client command
 public class ProtocolParser {
 
-    // Single shared board for all clients
-    private static final Board board = new Board();
+    // fixed error replies, built once instead of on every bad command
+    private static final String EMPTY_COMMAND = error("INVALID_FORMAT", "Empty command");
+    private static final String UNKNOWN_COMMAND = error("INVALID_FORMAT", "Unknown command");
+    private static final String POST_USAGE = error("INVALID_FORMAT", "POST requires x y colour message");
+    private static final String PIN_USAGE = error("INVALID_FORMAT", "PIN requires x y coordinates");
+    private static final String UNPIN_USAGE = error("INVALID_FORMAT", "UNPIN requires x y coordinates");
+    private static final String RESIZE_USAGE = error("INVALID_FORMAT", "RESIZE requires w h nw nh");
+    private static final String SINCE_USAGE = error("INVALID_FORMAT", "GET SINCE requires a version");
+    private static final String BAD_COORDINATES = error("INVALID_FORMAT", "Coordinates must be non negative integers");
+    private static final String BAD_DIMENSIONS = error("INVALID_FORMAT", "Dimensions must be positive integers");
+    private static final String BAD_VERSION = error("INVALID_FORMAT", "Version must be a non negative integer");
+    private static final String COLOUR_NOT_SUPPORTED = error("COLOUR_NOT_SUPPORTED", "Colour not found in list");
+    private static final String INVALID_COLOUR = error("INVALID_COLOUR", "Colour not supported");
+    private static final String INVALID_COORDINATES = error("INVALID_COORDINATES", "Invalid contains coordinates");
+    private static final String EMPTY_SUBSTRING = error("INVALID_SUBSTRING", "Empty substring");
+    private static final String UNKNOWN_GET_FIELD = error("INVALID_FORMAT", "Unknown GET field");
+    private static final String LIMIT_USAGE = error("INVALID_FORMAT", "LIMIT requires a positive number");
+    private static final String CURSOR_USAGE = error("INVALID_FORMAT", "CURSOR requires a cursor from GET_MORE");
+    private static final String INVALID_CURSOR = error("INVALID_CURSOR", "Cursor not recognised, start over without one");
+    private static final String SHAKE_NO_ARGS = error("INVALID_FORMAT", "SHAKE takes no arguments");
+    private static final String CLEAR_NO_ARGS = error("INVALID_FORMAT", "CLEAR takes no arguments");
+    private static final String SUBSCRIBE_NO_ARGS = error("INVALID_FORMAT", "SUBSCRIBE takes no arguments");
+    private static final String UNSUBSCRIBE_NO_ARGS = error("INVALID_FORMAT", "UNSUBSCRIBE takes no arguments");
+    private static final String STATS_NO_ARGS = error("INVALID_FORMAT", "STATS takes no arguments");
+    private static final String MALFORMED_FRAME = error("INVALID_FORMAT", "Malformed binary request");
+    private static final String MULTILINE_TEXT = error("INVALID_FORMAT", "TEXT frame must hold a single line");
+    private static final String SUBSCRIBE_NO_CONNECTION = error("INVALID_FORMAT", "SUBSCRIBE needs a connection");
+    private static final String UNSUBSCRIBE_NO_CONNECTION = error("INVALID_FORMAT", "UNSUBSCRIBE needs a connection");
+    private static final String ALREADY_SUBSCRIBED = error("ALREADY_SUBSCRIBED", "Already subscribed");
+    private static final String NOT_SUBSCRIBED = error("NOT_SUBSCRIBED", "Not subscribed");
+    private static final String USE_USAGE = error("INVALID_FORMAT", "USE requires a board name");
+    private static final String USE_NO_CONNECTION = error("INVALID_FORMAT", "USE needs a connection");
+    private static final String BOARD_NOT_FOUND = error("BOARD_NOT_FOUND", "No board with that name");
+    private static final String EXPLAIN_USAGE = error("INVALID_FORMAT", "EXPLAIN requires a GET that lists notes");
+
+    // the board connections start on, for startup work and callers without a connection
+    static Board board() {
+        return Boards.defaultBoard();
+    }
 
     public static String parse(String input) {
+        return parse(input, null);
+    }
+
+    // session carries per-connection state (SUBSCRIBE, USE), null when there is no connection;
+    // without one commands go to the default board
+    public static String parse(String input, Session session) {
+        long start = System.nanoTime();
+        Board board = session != null ? session.board : Boards.defaultBoard();
 
         if (input == null || input.isEmpty()) {
-            return error("INVALID_FORMAT", "Empty command"); // rejects any empty commands immediately
+            Metrics.command(board, Metrics.OTHER, System.nanoTime() - start, EMPTY_COMMAND);
+            return EMPTY_COMMAND; // rejects any empty commands immediately
         }
 
-        String[] tokens = input.split("\\s+"); // split command by spaces, single spaces only as detailed in RFC
-        String cmd = tokens[0]; // first token must be command key word
+        CommandCursor c = new CommandCursor(input); // tokens separated by whitespace, as detailed in RFC
+        c.keyword(); // first token must be command key word
+        int command = command(c);
 
-        // parsing for the different commands
-        switch (cmd) {
+        String reply = dispatch(command, c, board, session);
+        Metrics.command(board, command, System.nanoTime() - start, reply);
+        return reply;
+    }
 
-            case "POST":
-                return parsePost(tokens, input);
+    // a GET that lists notes (plain or filtered), answered with the snapshot to stream
+    // the reply from (see BoardSnapshot.textChunks) instead of the reply text. Counted
+    // for STATS like parse() does. null for any other line, including a GET with a bad
+    // field: the caller hands those to parse(), which has the error reply for them
+    public static BoardSnapshot parseListing(String input, Session session) {
+        long start = System.nanoTime();
+        Board board = session.board;
+        if (input == null || input.isEmpty()) {
+            return null;
+        }
+        CommandCursor c = new CommandCursor(input);
+        c.keyword();
+        if (command(c) != Metrics.GET) {
+            return null;
+        }
 
-            case "GET":
-                return parseGet(tokens);
+        GetFilters filters = new GetFilters();
+        if (c.next()) {
+            if (c.is("PINS") || c.is("SINCE") || parseFilters(c, board, filters) != null) {
+                return null;
+            }
+        }
+        BoardSnapshot listing = board.listing(filters.colour, filters.contains, filters.refersTo, filters.after,
+                filters.limit);
+        if (listing != null) {
+            Metrics.command(board, Metrics.GET, System.nanoTime() - start, false);
+        }
+        return listing;
+    }
 
-            case "PIN":
-                return parsePin(tokens);
+    // one binary request frame (see WireCodec), answered with one reply frame. Same
+    // checks and the same board calls as the text commands, just no text in between
+    public static byte[] parseFrame(byte[] frame, Session session) {
+        long start = System.nanoTime();
+        Board board = session.board;
+        WireCodec.In in = new WireCodec.In(frame);
+        int op;
+        try {
+            op = in.op();
+        } catch (IllegalArgumentException e) {
+            Metrics.command(board, Metrics.OTHER, System.nanoTime() - start, true);
+            return WireCodec.text(MALFORMED_FRAME);
+        }
+        if (op == WireCodec.TEXT) {
+            String line = in.rest();
+            // one text command, as the text protocol would have read it
+            if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+                Metrics.command(board, Metrics.OTHER, System.nanoTime() - start, true);
+                return WireCodec.text(MULTILINE_TEXT);
+            }
+            return WireCodec.text(parse(line, session)); // parse() does its own metrics
+        }
 
-            case "UNPIN":
-                return parseUnPin(tokens);
+        int command = Metrics.OTHER;
+        byte[] reply = null;
+        String text;
+        try {
+            switch (op) {
+                case WireCodec.POST: {
+                    command = Metrics.POST;
+                    int x = in.intVarint();
+                    int y = in.intVarint();
+                    String colour = validColour(board, in.colour(board.handshakeColours()));
+                    String message = in.string();
+                    text = colour == null ? COLOUR_NOT_SUPPORTED : board.post(x, y, colour, message);
+                    break;
+                }
+                case WireCodec.GET: {
+                    command = Metrics.GET;
+                    int flags = in.intVarint();
+                    String colour = null;
+                    int[] contains = null;
+                    String refersTo = null;
+                    text = null;
+                    if ((flags & WireCodec.HAS_COLOUR) != 0) {
+                        colour = validColour(board, in.colour(board.handshakeColours()));
+                        if (colour == null) {
+                            text = INVALID_COLOUR;
+                        }
+                    }
+                    if ((flags & WireCodec.HAS_CONTAINS) != 0) {
+                        contains = new int[] {in.intVarint(), in.intVarint()};
+                    }
+                    if ((flags & WireCodec.HAS_REFERS_TO) != 0) {
+                        refersTo = in.string();
+                        if (refersTo.isEmpty()) {
+                            text = EMPTY_SUBSTRING;
+                        }
+                    }
+                    long[] after = null;
+                    if ((flags & WireCodec.HAS_CURSOR) != 0) {
+                        after = board.cursor(in.string());
+                        if (after == null) {
+                            text = INVALID_CURSOR;
+                        }
+                    }
+                    int limit = 0;
+                    if ((flags & WireCodec.HAS_LIMIT) != 0) {
+                        limit = in.intVarint();
+                        if (limit < 1) {
+                            text = LIMIT_USAGE;
+                        }
+                    }
+                    if (text == null) {
+                        reply = board.getFilteredFrame(colour, contains, refersTo, after, limit);
+                    }
+                    break;
+                }
+                case WireCodec.GET_PINS:
+                    command = Metrics.GET;
+                    text = board.getPins();
+                    break;
+                case WireCodec.GET_SINCE:
+                    command = Metrics.GET;
+                    long since = in.varint();
+                    text = since < 0 ? BAD_VERSION : board.getChangesSince(since);
+                    break;
+                case WireCodec.PIN:
+                    command = Metrics.PIN;
+                    text = board.pin(in.intVarint(), in.intVarint());
+                    break;
+                case WireCodec.UNPIN:
+                    command = Metrics.UNPIN;
+                    text = board.unpin(in.intVarint(), in.intVarint());
+                    break;
+                case WireCodec.SHAKE:
+                    command = Metrics.SHAKE;
+                    text = board.shake();
+                    break;
+                case WireCodec.CLEAR:
+                    command = Metrics.CLEAR;
+                    text = board.clear();
+                    break;
+                case WireCodec.RESIZE: {
+                    command = Metrics.RESIZE;
+                    int w = in.intVarint();
+                    int h = in.intVarint();
+                    int nw = in.intVarint();
+                    int nh = in.intVarint();
+                    text = (w < 1 || h < 1 || nw < 1 || nh < 1) ? BAD_DIMENSIONS : board.resize(w, h, nw, nh);
+                    break;
+                }
+                case WireCodec.DISCONNECT:
+                    command = Metrics.DISCONNECT;
+                    text = "SUCCESS DISCONNECTED";
+                    break;
+                default:
+                    text = UNKNOWN_COMMAND;
+            }
+        } catch (IllegalArgumentException e) {
+            text = MALFORMED_FRAME;
+        }
+
+        if (reply == null) {
+            reply = WireCodec.text(text);
+        }
+        Metrics.command(board, command, System.nanoTime() - start, WireCodec.isError(reply));
+        return reply;
+    }
 
-            case "SHAKE":
-            case "CLEAR":
-                return ParseNoArgs(tokens, cmd);
+    // a colour from a frame, in its configured (lowercase) spelling, null if not configured
+    private static String validColour(Board board, String colour) {
+        String folded = colour.toLowerCase();
+        return board.validColours().contains(folded) ? folded : null;
+    }
+
+    // which command the keyword names, one of the Metrics kinds
+    private static int command(CommandCursor c) {
+        for (int i = 0; i < Metrics.OTHER; i++) {
+            if (c.is(Metrics.COMMANDS[i])) {
+                return i;
+            }
+        }
+        return Metrics.OTHER;
+    }
 
-            case "RESIZE":
-                if (tokens.length != 5) {
-                    return error("INVALID_FORMAT", "RESIZE requires w h nw nh");
+    // parsing for the different commands
+    private static String dispatch(int command, CommandCursor c, Board board, Session session) {
+        switch (command) {
+            case Metrics.POST:
+                return parsePost(c, board);
+            case Metrics.GET:
+                return parseGet(c, board);
+            case Metrics.PIN:
+                return parsePin(c, board);
+            case Metrics.UNPIN:
+                return parseUnPin(c, board);
+            case Metrics.SHAKE:
+                return c.remainingTokens() != 0 ? SHAKE_NO_ARGS : board.shake();
+            case Metrics.CLEAR:
+                return c.remainingTokens() != 0 ? CLEAR_NO_ARGS : board.clear();
+            case Metrics.RESIZE:
+                return parseResize(c, board);
+            case Metrics.SUBSCRIBE:
+                if (c.remainingTokens() != 0) {
+                    return SUBSCRIBE_NO_ARGS;
                 }
-                int w, h, nw, nh;
-                try {
-                    w = Integer.parseInt(tokens[1]);
-                    h = Integer.parseInt(tokens[2]);
-                    nw = Integer.parseInt(tokens[3]);
-                    nh = Integer.parseInt(tokens[4]);
-                    if (w < 1 || h < 1 || nw < 1 || nh < 1)
-                        throw new NumberFormatException();
-                } catch (NumberFormatException e) {
-                    return error("INVALID_FORMAT", "Dimensions must be positive integers");
+                return session == null ? SUBSCRIBE_NO_CONNECTION : subscribe(board, session);
+            case Metrics.UNSUBSCRIBE:
+                if (c.remainingTokens() != 0) {
+                    return UNSUBSCRIBE_NO_ARGS;
                 }
-                return board.resize(w, h, nw, nh);
-
-            case "DISCONNECT":
+                return session == null ? UNSUBSCRIBE_NO_CONNECTION : unsubscribe(session);
+            case Metrics.DISCONNECT:
                 return "SUCCESS DISCONNECTED";
-
+            case Metrics.STATS:
+                return c.remainingTokens() != 0 ? STATS_NO_ARGS : Metrics.render();
+            case Metrics.USE:
+                if (c.remainingTokens() != 1) {
+                    return USE_USAGE;
+                }
+                c.next();
+                return session == null ? USE_NO_CONNECTION : use(c.text(0), session);
+            case Metrics.EXPLAIN:
+                return parseExplain(c, board);
             default:
-                return error("INVALID_FORMAT", "Unknown command");
+                return UNKNOWN_COMMAND;
         }
     }
 
     // this validates syntax of POST <x> <y> <colour> <message>
-    private static String parsePost(String[] tokens, String fulline) {
+    private static String parsePost(CommandCursor c, Board board) {
 
-        if (tokens.length < 5) {
-            return error("INVALID_FORMAT", "POST requires x y colour message");
+        if (c.remainingTokens() < 4) {
+            return POST_USAGE;
         }
 
         int x, y;
         try {
-            x = Integer.parseInt(tokens[1]);
-            y = Integer.parseInt(tokens[2]);
+            c.next();
+            x = c.intValue();
+            c.next();
+            y = c.intValue();
         } catch (NumberFormatException e) {
-            return error("INVALID_FORMAT", "Coordinates must be non negative integers");
+            return BAD_COORDINATES;
         }
 
-        // validate colour
-        String colour = tokens[3].toLowerCase();
-        if (!BBoard.VALID_COLOURS.contains(colour)) {
-            return error("COLOUR_NOT_SUPPORTED", "Colour not found in list");
+        // validate colour, matched case-insensitively against the configured (lowercase) set
+        c.next();
+        String colour = c.matchIn(board.validColours(), 0);
+        if (colour == null) {
+            return COLOUR_NOT_SUPPORTED;
         }
 
-        // message is everything after the colour
-        // Use tokens[3] (original case) to find the index, NOT the lowercased 'colour'
-        // var
-        int msgStart = fulline.indexOf(tokens[3]) + tokens[3].length() + 1;
-        String message = "";
-        if (msgStart < fulline.length()) {
-            message = fulline.substring(msgStart);
-        }
+        // message is everything after the colour and the single space following it
+        String message = c.rest();
 
         return board.post(x, y, colour, message);
     }
 
     // validates PIN syntax: PIN <x> <y>
-    private static String parsePin(String[] tokens) {
+    private static String parsePin(CommandCursor c, Board board) {
 
-        if (tokens.length != 3) {
-            return error("INVALID_FORMAT", "PIN requires x y coordinates");
+        if (c.remainingTokens() != 2) {
+            return PIN_USAGE;
         }
 
         int x, y;
         try {
-            x = Integer.parseInt(tokens[1]);
-            y = Integer.parseInt(tokens[2]);
+            c.next();
+            x = c.intValue();
+            c.next();
+            y = c.intValue();
         } catch (NumberFormatException e) {
-            return error("INVALID_FORMAT", "Coordinates must be non negative integers");
+            return BAD_COORDINATES;
         }
 
         return board.pin(x, y);
     }
 
     // validates UNPIN syntax: UNPIN <x> <y>
-    private static String parseUnPin(String[] tokens) {
+    private static String parseUnPin(CommandCursor c, Board board) {
 
-        if (tokens.length != 3) {
-            return error("INVALID_FORMAT", "UNPIN requires x y coordinates");
+        if (c.remainingTokens() != 2) {
+            return UNPIN_USAGE;
         }
 
         int x, y;
         try {
-            x = Integer.parseInt(tokens[1]);
-            y = Integer.parseInt(tokens[2]);
+            c.next();
+            x = c.intValue();
+            c.next();
+            y = c.intValue();
         } catch (NumberFormatException e) {
-            return error("INVALID_FORMAT", "Coordinates must be non negative integers");
+            return BAD_COORDINATES;
         }
 
         return board.unpin(x, y);
     }
 
+    // validates RESIZE syntax: RESIZE <w> <h> <nw> <nh>
+    private static String parseResize(CommandCursor c, Board board) {
+
+        if (c.remainingTokens() != 4) {
+            return RESIZE_USAGE;
+        }
+
+        int w, h, nw, nh;
+        try {
+            c.next();
+            w = c.intValue();
+            c.next();
+            h = c.intValue();
+            c.next();
+            nw = c.intValue();
+            c.next();
+            nh = c.intValue();
+        } catch (NumberFormatException e) {
+            return BAD_DIMENSIONS;
+        }
+        if (w < 1 || h < 1 || nw < 1 || nh < 1) {
+            return BAD_DIMENSIONS;
+        }
+
+        return board.resize(w, h, nw, nh);
+    }
+
     // validates GET syntax and handles:
     // GET
     // GET PINS
+    // GET SINCE <version>
     // GET colour=<c> contains=<x> <y> refersTo=<substring>
-    private static String parseGet(String[] tokens) {
+    // any of those plus LIMIT <n> and/or CURSOR <cursor>, one page at a time
+    private static String parseGet(CommandCursor c, Board board) {
 
         // GET (no filters = ALL)
-        if (tokens.length == 1) {
+        if (!c.next()) {
             return board.getFilteredNotes(null, null, null);
         }
 
         // GET PINS and configuring filetered based get
-        if (tokens.length == 2 && tokens[1].equals("PINS")) {
+        if (c.is("PINS") && c.remainingTokens() == 0) {
             return board.getPins();
         }
 
-        String colour = null;
-        Integer cx = null, cy = null;
-        String refersTo = null;
+        // GET SINCE <version>, changes after the version the client already has
+        if (c.is("SINCE")) {
+            if (c.remainingTokens() != 1) {
+                return SINCE_USAGE;
+            }
+            c.next();
+            long since;
+            try {
+                since = c.longValue();
+            } catch (NumberFormatException e) {
+                return BAD_VERSION;
+            }
+            if (since < 0) {
+                return BAD_VERSION;
+            }
+            return board.getChangesSince(since);
+        }
 
-        for (int i = 1; i < tokens.length; i++) {
+        GetFilters filters = new GetFilters();
+        String error = parseFilters(c, board, filters);
+        if (error != null) {
+            return error;
+        }
+        return board.getFilteredNotes(filters.colour, filters.contains, filters.refersTo, filters.after,
+                filters.limit);
+    }
 
-            if (tokens[i].startsWith("colour=")) {
-                colour = tokens[i].substring(7).toLowerCase();
-                if (!BBoard.VALID_COLOURS.contains(colour)) {
-                    return error("INVALID_COLOUR", "Colour not supported");
+    // EXPLAIN GET [filters]: the GET is parsed the same way, then only planned
+    private static String parseExplain(CommandCursor c, Board board) {
+        if (!c.next() || !c.is("GET")) {
+            return EXPLAIN_USAGE;
+        }
+        GetFilters filters = new GetFilters();
+        if (c.next()) {
+            if (c.is("PINS") || c.is("SINCE")) {
+                return EXPLAIN_USAGE;
+            }
+            String error = parseFilters(c, board, filters);
+            if (error != null) {
+                return error;
+            }
+        }
+        return board.explain(filters.colour, filters.contains, filters.refersTo, filters.after, filters.limit);
+    }
+
+    // colour= contains= refersTo= of a GET, starting at the cursor's current token, and
+    // its page: LIMIT <n> (0 = no limit) and CURSOR <cursor> (decoded by the board)
+    private static class GetFilters {
+        String colour;
+        int[] contains;
+        String refersTo;
+        long[] after;
+        int limit;
+    }
+
+    // fills 'filters', returns the error reply if a field is bad, null if all are fine
+    private static String parseFilters(CommandCursor c, Board board, GetFilters filters) {
+        do {
+            if (c.startsWith("colour=")) {
+                filters.colour = c.matchIn(board.validColours(), 7);
+                if (filters.colour == null) {
+                    return INVALID_COLOUR;
+                }
+
+            } else if (c.startsWith("contains=")) {
+                // the two coordinates are the next tokens: contains= <x> <y>
+                try {
+                    if (!c.next()) {
+                        return INVALID_COORDINATES;
+                    }
+                    int cx = c.intValue();
+                    if (!c.next()) {
+                        return INVALID_COORDINATES;
+                    }
+                    filters.contains = new int[] { cx, c.intValue() };
+                } catch (NumberFormatException e) {
+                    return INVALID_COORDINATES;
+                }
+
+            } else if (c.startsWith("refersTo=")) {
+                if (c.length() == 9) {
+                    return EMPTY_SUBSTRING;
                 }
+                filters.refersTo = c.text(9);
 
-            } else if (tokens[i].startsWith("contains=")) {
+            } else if (c.is("LIMIT")) {
                 try {
-                    cx = Integer.parseInt(tokens[++i]);
-                    cy = Integer.parseInt(tokens[++i]);
-                } catch (Exception e) {
-                    return error("INVALID_COORDINATES", "Invalid contains coordinates");
+                    if (!c.next() || (filters.limit = c.intValue()) < 1) {
+                        return LIMIT_USAGE;
+                    }
+                } catch (NumberFormatException e) {
+                    return LIMIT_USAGE;
                 }
 
-            } else if (tokens[i].startsWith("refersTo=")) {
-                refersTo = tokens[i].substring(9);
-                if (refersTo.isEmpty()) {
-                    return error("INVALID_SUBSTRING", "Empty substring");
+            } else if (c.is("CURSOR")) {
+                if (!c.next()) {
+                    return CURSOR_USAGE;
+                }
+                // a cursor from another board, or from before a restart, can't be resumed
+                filters.after = board.cursor(c.text(0));
+                if (filters.after == null) {
+                    return INVALID_CURSOR;
                 }
 
             } else {
-                return error("INVALID_FORMAT", "Unknown GET field");
+                return UNKNOWN_GET_FIELD;
             }
-        }
-
-        return board.getFilteredNotes(
-                colour,
-                (cx == null ? null : new int[] { cx, cy }),
-                refersTo);
+        } while (c.next());
+        return null;
     }
 
-    // for SHAKE and CLEAR that takes no arguments
-    private static String ParseNoArgs(String[] tokens, String cmd) {
+    // SUBSCRIBE: board changes are pushed as EVENT <version> <event> lines after
+    // SUCCESS SUBSCRIBED <version>, every pushed version is newer than that one
+    private static String subscribe(Board board, Session session) {
+        if (session.subscribedTo != null) {
+            return ALREADY_SUBSCRIBED;
+        }
+        long version = board.subscribe(session.subscriber);
+        session.subscribedTo = board;
+        return "SUCCESS SUBSCRIBED " + version;
+    }
 
-        if (tokens.length != 1) {
-            return error("INVALID_FORMAT", cmd + " takes no arguments");
+    private static String unsubscribe(Session session) {
+        if (session.subscribedTo == null) {
+            return NOT_SUBSCRIBED;
         }
+        session.close();
+        return "SUCCESS UNSUBSCRIBED";
+    }
 
-        if (cmd.equals("SHAKE")) {
-            return board.shake();
-        } else {
-            return board.clear();
+    // USE <board>: the rest of the connection's commands go to that board. Answered with
+    // the board's BOARD / NOTE / COLOURS lines (as on connect) and SUCCESS USING <board>.
+    // A subscription to the previous board ends, events never mix two boards
+    private static String use(String name, Session session) {
+        Board target = Boards.get(name);
+        if (target == null) {
+            return BOARD_NOT_FOUND;
+        }
+        if (session.subscribedTo != null && session.subscribedTo != target) {
+            session.close();
+        }
+        session.board = target;
+        StringBuilder sb = new StringBuilder();
+        for (String line : target.handshakeLines()) {
+            sb.append(line).append("\n");
         }
+        sb.append("SUCCESS USING ").append(target.name);
+        return sb.toString();
     }
 
     // standardizes error messages from server
@@ -0,0 +1,113 @@
+import java.util.*;
+
+/*How Board answers one filtered GET, picked from the indexes' own counts.
+Responsible for the following:
+    - Estimating how many notes each access path would hand over: every note (scan),
+      the colour's list (ColourIndex count), the grid cell under contains= (its entries)
+      or the rarest trigram posting of refersTo= (IntSet size). The indexes keep all of
+      these up to date as notes come and go, so planning costs a few lookups
+    - Costing each path as the notes it visits. The scan and colour list are walked in
+      post order and stop once a LIMIT page is full, the grid cell and the trigram search
+      are taken whole
+    - Picking the cheapest, so a scan only happens when nothing narrows it down more,
+      and "none" when some filter can't match at all (a colour no note has, a trigram
+      no message has)
+    - Describing the choice for EXPLAIN GET
+Every visited note is then checked against the other filters: colour= and contains=
+against its own columns, refersTo= against the query's trigram postings (rarest first,
+so most notes drop out on an IntSet lookup) before its message is searched. Built and
+used under the board's read lock.
+*/
+
+public class QueryPlan {
+
+    // access paths, in the order EXPLAIN lists them and ties are broken
+    static final int NONE = 0;
+    static final int GRID = 1;
+    static final int COLOUR = 2;
+    static final int TEXT = 3;
+    static final int SCAN = 4;
+    private static final String[] PATHS = {"none", "grid", "colour", "text", "scan"};
+
+    private final long[] rows = {0, -1, -1, -1, -1}; // notes each path hands over, -1 if it can't be used
+    private final long[] costs = {0, -1, -1, -1, -1};
+    private final boolean colour, contains, refersTo; // which filters the GET has
+    final int path; // the chosen one
+    final long estimate; // most notes that can match: the fewest any usable path hands over
+    final List<IntSet> postings; // refersTo='s trigram postings, rarest first; null if the index can't help
+
+    // colourRows, gridRows: -1 if that filter is absent or its index isn't usable (still
+    // being built after a restore); postings from TrigramIndex.postings, or null.
+    // limit is the page size, 0 for all matches
+    QueryPlan(long scanRows, long colourRows, long gridRows, List<IntSet> postings, boolean colour,
+            boolean contains, boolean refersTo, int limit) {
+        this.colour = colour;
+        this.contains = contains;
+        this.refersTo = refersTo;
+        this.postings = postings;
+        rows[SCAN] = scanRows;
+        rows[COLOUR] = colourRows;
+        rows[GRID] = gridRows;
+        rows[TEXT] = (postings == null) ? -1 : postings.get(0).size();
+
+        long fewest = scanRows;
+        for (int p = GRID; p < SCAN; p++) {
+            if (rows[p] >= 0) {
+                fewest = Math.min(fewest, rows[p]);
+            }
+        }
+        estimate = fewest;
+
+        int best = NONE;
+        if (fewest > 0) {
+            for (int p = GRID; p <= SCAN; p++) {
+                if (rows[p] < 0) {
+                    continue;
+                }
+                costs[p] = (p == SCAN || p == COLOUR) ? walked(rows[p], limit) : rows[p];
+                if (best == NONE || costs[p] < costs[best]) {
+                    best = p;
+                }
+            }
+        }
+        path = best;
+    }
+
+    // a list walk stops at limit + 1 matches; with matches spread evenly through the
+    // list (no better guess) that is about this far in
+    private long walked(long listRows, int limit) {
+        if (limit <= 0) {
+            return listRows;
+        }
+        return Math.min(listRows, ((long) limit + 1) * listRows / estimate);
+    }
+
+    // EXPLAIN reply: every usable path with its counts, the chosen one, then the
+    // filters checked on each note it visits
+    void appendExplain(StringBuilder sb) {
+        sb.append("SUCCESS EXPLAIN\n");
+        for (int p = GRID; p <= SCAN; p++) {
+            if (rows[p] >= 0) {
+                sb.append("PATH ").append(PATHS[p]).append(" rows=").append(rows[p])
+                        .append(" cost=").append(costs[p] >= 0 ? costs[p] : rows[p]).append("\n");
+            }
+        }
+        sb.append("PLAN ").append(PATHS[path]).append(" estimate=").append(estimate).append("\n");
+        if (path != NONE) {
+            if (colour && path != COLOUR) {
+                sb.append("CHECK colour=\n");
+            }
+            if (contains && path != GRID) {
+                sb.append("CHECK contains=\n");
+            }
+            if (refersTo && path != TEXT) {
+                sb.append("CHECK refersTo=");
+                if (postings != null) {
+                    sb.append(" postings=").append(postings.size());
+                }
+                sb.append("\n");
+            }
+        }
+        sb.append("SUCCESS EXPLAIN_COMPLETE");
+    }
+}
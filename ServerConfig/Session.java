@@ -0,0 +1,32 @@
+/*Per-connection protocol state, shared by both server modes.
+Responsible for the following:
+    - Remembering what a single connection has switched on (SUBSCRIBE, USE)
+    - Cleaning that up when the connection goes away
+ProtocolParser itself stays stateless, anything a command changes for the
+rest of the connection lives here instead.
+*/
+
+public class Session {
+
+    // how pushed events reach this connection, supplied by the transport
+    final EventHub.Subscriber subscriber;
+
+    // board we are subscribed to, null if not subscribed
+    Board subscribedTo;
+
+    // board commands go to, the default one until USE picks another. Only the
+    // connection's own reading thread touches it
+    Board board = Boards.defaultBoard();
+
+    public Session(EventHub.Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    // connection closed, stop pushing to it
+    public void close() {
+        if (subscribedTo != null) {
+            subscribedTo.unsubscribe(subscriber);
+            subscribedTo = null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.*;
+
+/*Primitive hash table from a long key to a short list of note slots (see NoteStore).
+Responsible for the following:
+    - Storing, finding and dropping keys without boxing or entry objects
+      (open addressing with linear probing, at most half full)
+    - Keeping each key's slots in the order they were added, which Board keeps
+      equal to post order
+GridIndex keys it by cell, PinIndex by pin coordinate. The slot arrays are replaced
+rather than changed in place, so an array handed out stays valid. Not thread safe,
+Board only touches it under its lock.
+*/
+
+public class SlotTable {
+
+    // no key used here is ever this value (cells and pins are on the board)
+    private static final long FREE = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys = newKeys(MIN_CAPACITY);
+    private int[][] slots = new int[MIN_CAPACITY][];
+    private int size = 0;
+
+    // slots stored under key, in the order they were added; null if none
+    public int[] get(long key) {
+        int at = find(key);
+        return at < 0 ? null : slots[at];
+    }
+
+    public void put(long key, int[] value) {
+        int at = find(key);
+        if (at >= 0) {
+            slots[at] = value;
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        at = home(key, keys.length);
+        while (keys[at] != FREE) {
+            at = (at + 1) & (keys.length - 1);
+        }
+        keys[at] = key;
+        slots[at] = value;
+        size++;
+    }
+
+    // adds slot at the end of key's list
+    public void append(long key, int slot) {
+        int[] current = get(key);
+        if (current == null) {
+            put(key, new int[] {slot});
+            return;
+        }
+        int[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = slot;
+        put(key, next);
+    }
+
+    // drops slot from key's list, and the key once its list is empty
+    public void removeSlot(long key, int slot) {
+        int at = find(key);
+        if (at < 0) {
+            return;
+        }
+        int[] current = slots[at];
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == slot) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        if (current.length == 1) {
+            delete(at);
+            return;
+        }
+        int[] next = new int[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, next.length - index);
+        slots[at] = next;
+    }
+
+    public void clear() {
+        keys = newKeys(MIN_CAPACITY);
+        slots = new int[MIN_CAPACITY][];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // every key, in no particular order
+    public long[] keys() {
+        long[] all = new long[size];
+        int i = 0;
+        for (long k : keys) {
+            if (k != FREE) {
+                all[i++] = k;
+            }
+        }
+        return all;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        long bytes = (long) keys.length * 12;
+        for (int[] s : slots) {
+            if (s != null) {
+                bytes += 16 + 4L * s.length;
+            }
+        }
+        return bytes;
+    }
+
+    // index holding key, -1 if absent
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int at = home(key, keys.length); keys[at] != FREE; at = (at + 1) & mask) {
+            if (keys[at] == key) {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    // linear probing delete: pull later entries of the run back so lookups never stop early
+    private void delete(int at) {
+        int mask = keys.length - 1;
+        int hole = at;
+        for (int next = (hole + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+            int home = home(keys[next], keys.length);
+            // move it if its home isn't cyclically within (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                slots[hole] = slots[next];
+                hole = next;
+            }
+        }
+        keys[hole] = FREE;
+        slots[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[][] oldSlots = slots;
+        keys = newKeys(capacity);
+        slots = new int[capacity][];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int at = home(oldKeys[i], capacity);
+                while (keys[at] != FREE) {
+                    at = (at + 1) & (capacity - 1);
+                }
+                keys[at] = oldKeys[i];
+                slots[at] = oldSlots[i];
+            }
+        }
+    }
+
+    // keys times an odd constant (Long.hashCode of packed coordinates is x ^ y, which
+    // puts a whole diagonal together), the top bits pick the index
+    private static int home(long key, int capacity) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] k = new long[capacity];
+        Arrays.fill(k, FREE);
+        return k;
+    }
+}
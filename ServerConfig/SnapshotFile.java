@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*Binary file holding the whole board at one version, written by WriteAheadLog.
+Responsible for the following:
+    - Writing a BoardSnapshot: dimensions, configured flag, version, every note with its pins
+    - Loading one back into a Board at startup
+Both directions are one pass over the notes with no stream decoding in between.
+Writing fills each section below through its own heap buffer at its own file offset,
+so the temp file is never mapped when it is renamed. Loading maps the file read only,
+closes the channel and copies every note into the board's own columns and arena; the
+mapping is unreachable once load() returns, long before a later compaction deletes
+the file (see WriteAheadLog.deleteBefore for platforms that refuse that meanwhile).
+A snapshot is written to a temp file, forced and then renamed, so a snapshot-*.bin
+file is always complete.
+Layout (big endian), sections back to back:
+    header   magic, format, version, board w h, note w h, configured, colour count,
+             note count, pin count, message bytes
+    colours  per colour: length + UTF-8 name (a note's colour is an index into this)
+    notes    per note, fixed size: x y w h colour pins message-length
+    pins     x y of every pin, in note order
+    messages UTF-8 bytes of every message, in note order
+One mapping covers the whole file when loading, so a snapshot is limited to 2GB.
+*/
+
+public class SnapshotFile {
+
+    private static final int MAGIC = 0x42424F44; // "BBOD"
+    private static final int FORMAT = 2;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 * 4 + 4 + 4 + 4 + 8 + 8;
+    private static final int NOTE_BYTES = 7 * 4;
+    private static final int PIN_BYTES = 2 * 4;
+    private static final int BUFFER_BYTES = 64 * 1024; // per section
+
+    public static void write(BoardSnapshot s, Path target) throws IOException {
+        // sized up front, the section sizes decide where each section starts
+        int colourCount = s.colours.count();
+        byte[][] colours = new byte[colourCount][];
+        for (int i = 0; i < colourCount; i++) {
+            colours[i] = s.colours.name(i).getBytes(StandardCharsets.UTF_8);
+        }
+        NoteColumns notes = s.notes;
+        long messageBytes = 0;
+        long pinCount = 0;
+        for (int i = 0; i < notes.size; i++) {
+            messageBytes += MessageArena.length(notes.text(i));
+            pinCount += notes.pins(i).length;
+        }
+        long colourBytes = 0;
+        for (byte[] c : colours) {
+            colourBytes += 4 + c.length;
+        }
+        long size = HEADER_BYTES + colourBytes + (long) notes.size * NOTE_BYTES + pinCount * PIN_BYTES + messageBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Board too large for one snapshot mapping: " + size + " bytes");
+        }
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(ch, 0, BUFFER_BYTES);
+            out.room(HEADER_BYTES).putInt(MAGIC).putInt(FORMAT).putLong(s.version);
+            out.buf.putInt(s.boardWidth).putInt(s.boardHeight).putInt(s.noteWidth).putInt(s.noteHeight);
+            out.buf.putInt(s.configured ? 1 : 0);
+            out.buf.putInt(colourCount).putInt(notes.size).putLong(pinCount).putLong(messageBytes);
+            for (byte[] c : colours) {
+                out.room(4).putInt(c.length);
+                out.put(c);
+            }
+            out.flush();
+
+            // notes, pins and messages are written side by side, each at its own offset
+            // (message bytes come straight out of the arena, no String in between)
+            long notesAt = out.at;
+            long pinsAt = notesAt + (long) notes.size * NOTE_BYTES;
+            long messagesAt = pinsAt + pinCount * PIN_BYTES;
+            Output records = new Output(ch, notesAt, BUFFER_BYTES);
+            Output pins = new Output(ch, pinsAt, BUFFER_BYTES);
+            Output text = new Output(ch, messagesAt, BUFFER_BYTES);
+            for (int i = 0; i < notes.size; i++) {
+                long[] p = notes.pins(i);
+                byte[] message = notes.messageBytes(i);
+                records.room(NOTE_BYTES).putInt(notes.x(i)).putInt(notes.y(i)).putInt(s.noteWidth)
+                        .putInt(s.noteHeight).putInt(notes.colourId(i)).putInt(p.length).putInt(message.length);
+                for (long pin : p) {
+                    pins.room(PIN_BYTES).putInt(Pin.x(pin)).putInt(Pin.y(pin));
+                }
+                text.put(message);
+            }
+            records.flush();
+            pins.flush();
+            text.flush();
+            ch.force(true); // on disk, length included, before the rename makes it the current snapshot
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void load(Path source, Board board) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel ch = FileChannel.open(source, StandardOpenOption.READ)) {
+            in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid once the channel is closed
+        }
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a board snapshot: " + source);
+        }
+        int format = in.getInt();
+        if (format != FORMAT) {
+            throw new IOException("Unknown snapshot format " + format + ": " + source);
+        }
+
+        long version = in.getLong();
+        int w = in.getInt();
+        int h = in.getInt();
+        int nw = in.getInt();
+        int nh = in.getInt();
+        boolean configured = in.getInt() != 0;
+        int colourCount = in.getInt();
+        int count = in.getInt();
+        long pinCount = in.getLong();
+        in.getLong(); // message bytes, only needed for sizing when writing
+
+        // file colour index -> colour id in this process
+        int[] colourIds = new int[colourCount];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < colourCount; i++) {
+            int length = in.getInt();
+            scratch = fit(scratch, length);
+            in.get(scratch, 0, length);
+            // may have been dropped from the command line since
+            colourIds[i] = board.colours.register(new String(scratch, 0, length, StandardCharsets.UTF_8));
+        }
+
+        // every note is copied out, nothing keeps pointing into the mapping
+        int pinsAt = in.position() + count * NOTE_BYTES;
+        int messagesAt = (int) (pinsAt + pinCount * PIN_BYTES);
+        int pin = pinsAt;
+        int text = messagesAt;
+        NoteColumns.Builder notes = new NoteColumns.Builder(count);
+        for (int i = 0; i < count; i++) {
+            int x = in.getInt();
+            int y = in.getInt();
+            in.getInt(); // note width and height, every note has the board's
+            in.getInt();
+            int colour = colourIds[in.getInt()];
+            int pins = in.getInt();
+            int length = in.getInt();
+
+            byte[] message = new byte[length];
+            in.get(text, message, 0, length);
+            text += length;
+            int n = notes.add(x, y, colour, message);
+            for (int p = 0; p < pins; p++) {
+                notes.addPin(n, in.getInt(pin), in.getInt(pin + 4));
+                pin += PIN_BYTES;
+            }
+        }
+        board.restore(version, w, h, nw, nh, configured, notes.build());
+    }
+
+    private static byte[] fit(byte[] scratch, int length) {
+        return scratch.length >= length ? scratch : new byte[Math.max(length, scratch.length * 2)];
+    }
+
+    // one section of a snapshot being written: filled in a heap buffer, written at its own offset
+    private static final class Output {
+        final FileChannel ch;
+        final ByteBuffer buf;
+        long at; // where buf's contents go
+
+        Output(FileChannel ch, long at, int capacity) {
+            this.ch = ch;
+            this.at = at;
+            this.buf = ByteBuffer.allocate(capacity);
+        }
+
+        // buf, with room for n more bytes (n at most its capacity)
+        ByteBuffer room(int n) throws IOException {
+            if (buf.remaining() < n) {
+                flush();
+            }
+            return buf;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            if (bytes.length <= buf.capacity()) {
+                room(bytes.length).put(bytes);
+                return;
+            }
+            flush(); // bigger than the buffer, goes straight to the file
+            write(ByteBuffer.wrap(bytes));
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            write(buf);
+            buf.clear();
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                at += ch.write(bytes, at);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/*Inverted index from 3-character sequences to the notes whose message has them.
+Responsible for the following:
+    - Indexing every case-folded trigram of a note's message when it is posted
+    - Forgetting a note's trigrams when it is shaken off or the board is cleared
+    - Turning a refersTo=<s> query into a short list of candidate notes
+    - Handing out the query's posting sets, whose sizes QueryPlan costs it by
+A note can only contain s if it contains every trigram of s, so intersecting
+those posting sets leaves just the notes worth checking against the message.
+Notes are NoteStore slots. Not thread safe on its own, Board only touches it
+while holding its lock. build() fills a new index on the fork-join pool, for
+bulk rebuilds of a large board.
+*/
+
+public class TrigramIndex {
+
+    private static final int[] NONE = new int[0];
+
+    // trigram (3 chars packed into a long) -> slots whose folded message contains it
+    private final Map<Long, IntSet> postings = new HashMap<>();
+
+    public void add(int slot, String foldedMessage) {
+        for (long t : trigrams(foldedMessage)) {
+            postings.computeIfAbsent(t, k -> new IntSet()).add(slot);
+        }
+    }
+
+    public void remove(int slot, String foldedMessage) {
+        for (long t : trigrams(foldedMessage)) {
+            IntSet slots = postings.get(t);
+            if (slots != null) {
+                slots.remove(slot);
+                if (slots.size() == 0) {
+                    postings.remove(t);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        postings.clear();
+    }
+
+    // index of the given slots, built in parallel: every message's trigrams first, then
+    // each task fills the postings of its own share of the trigrams. The caller holds
+    // the board's write lock, so the store doesn't change underneath the tasks
+    public static TrigramIndex build(int[] slots, NoteStore store) {
+        long[][] perNote = new long[slots.length][];
+        Arrays.parallelSetAll(perNote, i -> trigramArray(store.foldedMessage(slots[i])));
+
+        int shards = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        List<Map<Long, IntSet>> parts = IntStream.range(0, shards).parallel().mapToObj(shard -> {
+            Map<Long, IntSet> part = new HashMap<>();
+            for (int i = 0; i < slots.length; i++) {
+                for (long t : perNote[i]) {
+                    if (Math.floorMod(Long.hashCode(t * 0x9E3779B97F4A7C15L), shards) == shard) {
+                        part.computeIfAbsent(t, k -> new IntSet()).add(slots[i]);
+                    }
+                }
+            }
+            return part;
+        }).collect(Collectors.toList());
+
+        TrigramIndex index = new TrigramIndex();
+        for (Map<Long, IntSet> part : parts) {
+            index.postings.putAll(part); // shards never share a trigram
+        }
+        return index;
+    }
+
+    // posting sets of every trigram in the (already folded) query, smallest first: the
+    // first one's size is as many notes as can match (see QueryPlan). A single empty set
+    // if some trigram appears nowhere. Returns null for queries shorter than a trigram,
+    // the caller scans instead
+    public List<IntSet> postings(String foldedQuery) {
+        if (foldedQuery.length() < 3) {
+            return null;
+        }
+        List<IntSet> sets = new ArrayList<>();
+        for (long t : trigrams(foldedQuery)) {
+            IntSet slots = postings.get(t);
+            if (slots == null) {
+                return List.of(new IntSet()); // some trigram appears nowhere
+            }
+            sets.add(slots);
+        }
+        sets.sort(Comparator.comparingInt(IntSet::size));
+        return sets;
+    }
+
+    // slots whose message contains the (already folded) query, in post order.
+    // Returns null for queries shorter than a trigram, the caller scans instead
+    public int[] search(String foldedQuery, NoteStore store) {
+        List<IntSet> sets = postings(foldedQuery);
+        return sets == null ? null : search(sets, foldedQuery.getBytes(StandardCharsets.UTF_8), store);
+    }
+
+    // same with the query's postings() and its UTF-8 bytes already at hand
+    public int[] search(List<IntSet> sets, byte[] query, NoteStore store) {
+        if (sets.get(0).size() == 0) {
+            return NONE;
+        }
+        int[] result = sets.get(0).toArray();
+        int found = 0;
+        for (int slot : result) {
+            // having every trigram doesn't mean they are in the right order, check for real
+            if (inAll(sets, slot) && store.messageContains(slot, query)) {
+                result[found++] = slot;
+            }
+        }
+        store.sortByPostOrder(result, found);
+        return Arrays.copyOf(result, found);
+    }
+
+    // whether 'slot' is in every one of the sets, a cheap first check before the message
+    public static boolean inAll(List<IntSet> sets, int slot) {
+        for (IntSet set : sets) {
+            if (!set.contains(slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // rough heap cost, for STATS
+    public long heapBytes() {
+        long bytes = (long) postings.size() * 64;
+        for (IntSet s : postings.values()) {
+            bytes += s.heapBytes();
+        }
+        return bytes;
+    }
+
+    private static long[] trigramArray(String s) {
+        Set<Long> distinct = trigrams(s);
+        long[] all = new long[distinct.size()];
+        int i = 0;
+        for (long t : distinct) {
+            all[i++] = t;
+        }
+        return all;
+    }
+
+    // distinct trigrams of s
+    private static Set<Long> trigrams(String s) {
+        Set<Long> result = new HashSet<>();
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            result.add(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,552 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/*Compact binary framing, used instead of text lines once a client asks for it.
+Shared by the server (ClientHandler, ProtocolParser) and the client (NetworkClient,
+which compiles it from ../ServerConfig), so it only depends on the JDK.
+Responsible for the following:
+    - Reading text lines and binary frames from the same buffered socket stream
+    - Encoding / decoding frames: varints, UTF-8 strings, colours as handshake ids
+    - Client side: turning a command line into a frame, and a reply frame back into
+      the exact text lines the text protocol would have sent
+Negotiation: after the BOARD / NOTE / COLOURS handshake the client sends the text line
+"PROTOCOL BINARY". A server that speaks it answers "SUCCESS PROTOCOL BINARY" and from
+the next byte on both directions are frames; any other answer (an older server, or
+--nio) means the connection stays text. The client waits for the answer before sending
+anything else. Without the request nothing changes, text stays the default.
+Frame: varint payload length, then the payload. The payload starts with an op:
+    TEXT        any command, reply or pushed EVENT in its text form (UTF-8, to the end)
+    POST        x y colour message
+    GET         flags, then colour / contains x y / refersTo / cursor / limit as flagged
+    GET_PINS, SHAKE, CLEAR, DISCONNECT   nothing else
+    GET_SINCE   version
+    PIN, UNPIN  x y
+    RESIZE      w h nw nh
+    NOTES       reply to GET: w h nw nh configured version count, then per note
+                x y colour message pin-count and each pin relative to the note (zigzag),
+                then the next page's cursor (a string) if the GET had a LIMIT and more follow
+Compression: the client may also send "COMPRESS DEFLATE" (text line or TEXT frame). After
+"SUCCESS COMPRESS DEFLATE" every reply over a size threshold is deflated: in text mode as
+the line "DEFLATE <n>" followed by n bytes that inflate to the reply's lines, in binary
+mode as a DEFLATED frame (op, then the deflated payload of the frame it replaces).
+Pushed events and small replies are sent as before.
+Numbers are unsigned LEB128 varints. A colour is 1 + its index in the handshake's
+COLOURS line (after USE <board>, the COLOURS line of that reply), or 0 followed by the
+name as a string. Anything the client can't put
+into a binary op exactly (negative numbers, unusual spacing, other commands) is sent
+as TEXT, so the server answers it exactly like the text protocol would.
+*/
+
+public class WireCodec {
+
+    public static final String NEGOTIATE = "PROTOCOL BINARY";
+    public static final String ACCEPTED = "SUCCESS PROTOCOL BINARY";
+
+    public static final int TEXT = 0;
+    public static final int POST = 1;
+    public static final int GET = 2;
+    public static final int GET_PINS = 3;
+    public static final int GET_SINCE = 4;
+    public static final int PIN = 5;
+    public static final int UNPIN = 6;
+    public static final int SHAKE = 7;
+    public static final int CLEAR = 8;
+    public static final int RESIZE = 9;
+    public static final int DISCONNECT = 10;
+    public static final int NOTES = 11;
+    public static final int DEFLATED = 12;
+
+    public static final String COMPRESS = "COMPRESS DEFLATE";
+    public static final String COMPRESS_ACCEPTED = "SUCCESS COMPRESS DEFLATE";
+    public static final String DEFLATE_LINE = "DEFLATE "; // DEFLATE <n>, then n compressed bytes
+
+    // GET flags
+    public static final int HAS_COLOUR = 1;
+    public static final int HAS_CONTAINS = 2;
+    public static final int HAS_REFERS_TO = 4;
+    public static final int HAS_CURSOR = 8;
+    public static final int HAS_LIMIT = 16;
+
+    // lines use the same charset the PrintWriter / BufferedReader pair always used
+    private static final Charset LINE_CHARSET = Charset.defaultCharset();
+
+    // growable output for one frame payload
+    public static class Out {
+        private byte[] buf = new byte[64];
+        private int size = 0;
+
+        public Out op(int op) {
+            return varint(op);
+        }
+
+        public Out varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+            return this;
+        }
+
+        // small signed values (pin offsets) stay one byte
+        public Out zigzag(int v) {
+            return varint(((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+        }
+
+        public Out string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            return bytes(bytes);
+        }
+
+        // index = position in the handshake COLOURS line
+        public Out colour(String name, Map<String, Integer> index) {
+            Integer i = index.get(name);
+            if (i != null) {
+                return varint(i + 1);
+            }
+            varint(0);
+            return string(name);
+        }
+
+        public Out bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+    }
+
+    // reads one frame payload; malformed input throws IllegalArgumentException
+    public static class In {
+        private final byte[] buf;
+        private int pos = 0;
+
+        public In(byte[] buf) {
+            this.buf = buf;
+        }
+
+        public int op() {
+            return intVarint();
+        }
+
+        public long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        // coordinates and dimensions, anything that doesn't fit an int is malformed
+        public int intVarint() {
+            long v = varint();
+            if (v > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Value out of range");
+            }
+            return (int) v;
+        }
+
+        public int zigzag() {
+            long v = varint();
+            return (int) (v >>> 1) ^ -(int) (v & 1);
+        }
+
+        public String string() {
+            int length = intVarint();
+            if (length > buf.length - pos) {
+                throw new IllegalArgumentException("String past end of frame");
+            }
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        public String colour(List<String> colours) {
+            int i = intVarint();
+            if (i == 0) {
+                return string();
+            }
+            if (i > colours.size()) {
+                throw new IllegalArgumentException("Unknown colour id " + i);
+            }
+            return colours.get(i - 1);
+        }
+
+        // what's left of the frame, raw
+        public byte[] restBytes() {
+            byte[] rest = Arrays.copyOfRange(buf, pos, buf.length);
+            pos = buf.length;
+            return rest;
+        }
+
+        // what's left of the frame as text (TEXT ops)
+        public String rest() {
+            String s = new String(buf, pos, buf.length - pos, StandardCharsets.UTF_8);
+            pos = buf.length;
+            return s;
+        }
+
+        public boolean hasRemaining() {
+            return pos < buf.length;
+        }
+
+        private byte next() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("Frame too short");
+            }
+            return buf[pos++];
+        }
+    }
+
+    // buffered socket input that can hand out text lines first and frames later,
+    // without the read-ahead of a BufferedReader swallowing the first frames
+    public static class Input {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private int pos = 0;
+        private int limit = 0;
+        private boolean skipLineFeed = false; // last line ended in \r, a following \n belongs to it
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        public Input(InputStream in) {
+            this.in = in;
+        }
+
+        // like BufferedReader.readLine: \n, \r or \r\n ends a line, null at end of stream
+        public String readLine() throws IOException {
+            line.reset();
+            while (true) {
+                if (pos == limit && !fill()) {
+                    return line.size() > 0 ? line.toString(LINE_CHARSET) : null;
+                }
+                byte b = buf[pos++];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLineFeed = (b == '\r');
+                    return line.toString(LINE_CHARSET);
+                }
+                line.write(b);
+            }
+        }
+
+        // payload of the next frame, null at end of stream between frames
+        public byte[] readFrame(int maxLength) throws IOException {
+            if (pos == limit && !fill()) {
+                return null;
+            }
+            if (skipLineFeed) {
+                // the \n of the negotiating line's \r\n, sent before any frame
+                skipLineFeed = false;
+                if (buf[pos] == '\n') {
+                    pos++;
+                    if (pos == limit && !fill()) {
+                        return null;
+                    }
+                }
+            }
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 28) {
+                    throw new IOException("Malformed frame length");
+                }
+                int b = readByte();
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length > maxLength) {
+                throw new IOException("Frame of " + length + " bytes is over the limit of " + maxLength);
+            }
+            byte[] payload = new byte[(int) length];
+            int filled = 0;
+            while (filled < payload.length) {
+                if (pos == limit && !fill()) {
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                int n = Math.min(limit - pos, payload.length - filled);
+                System.arraycopy(buf, pos, payload, filled, n);
+                pos += n;
+                filled += n;
+            }
+            return payload;
+        }
+
+        // exactly n bytes, e.g. the body after a DEFLATE line
+        public byte[] readBytes(int n) throws IOException {
+            byte[] bytes = new byte[n];
+            if (skipLineFeed) {
+                // the \n of the DEFLATE line's \r\n
+                skipLineFeed = false;
+                if ((pos < limit || fill()) && buf[pos] == '\n') {
+                    pos++;
+                }
+            }
+            int filled = 0;
+            while (filled < n) {
+                if (pos == limit && !fill()) {
+                    throw new EOFException("Stream ended inside a compressed reply");
+                }
+                int chunk = Math.min(limit - pos, n - filled);
+                System.arraycopy(buf, pos, bytes, filled, chunk);
+                pos += chunk;
+                filled += chunk;
+            }
+            return bytes;
+        }
+
+        // more input is already here, i.e. reading it won't block
+        public boolean ready() throws IOException {
+            return pos < limit || in.available() > 0;
+        }
+
+        private int readByte() throws IOException {
+            if (pos == limit && !fill()) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) {
+                return false;
+            }
+            pos = 0;
+            limit = n;
+            return true;
+        }
+    }
+
+    public static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+        int length = payload.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(payload);
+    }
+
+    // cheapest deflate level: the replies are repetitive text, most of the gain comes early
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] chunk = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] chunk = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed reply");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed reply", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // text mode: the bytes sent after "DEFLATE <n>" for a reply (line ending included)
+    public static byte[] deflateLines(String reply) {
+        return deflate((reply + System.lineSeparator()).getBytes(LINE_CHARSET));
+    }
+
+    // text mode: the lines a DEFLATE body stands for
+    public static void inflateLines(byte[] deflated, List<String> lines) {
+        String text = new String(inflate(deflated), LINE_CHARSET);
+        for (String line : text.split("\r\n|\n|\r")) {
+            lines.add(line);
+        }
+    }
+
+    // binary mode: a DEFLATED frame payload standing for 'payload'
+    public static byte[] deflatedFrame(byte[] payload) {
+        return new Out().op(DEFLATED).bytes(deflate(payload)).toByteArray();
+    }
+
+    // text of a TEXT frame, null for any other op
+    public static String textOf(byte[] frame) {
+        if (frame.length == 0 || frame[0] != TEXT) {
+            return null;
+        }
+        return new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8);
+    }
+
+    // a reply or event in its text form
+    public static byte[] text(String text) {
+        return new Out().op(TEXT).bytes(text.getBytes(StandardCharsets.UTF_8)).toByteArray();
+    }
+
+    // a TEXT reply carrying an ERROR status
+    public static boolean isError(byte[] reply) {
+        byte[] error = "ERROR".getBytes(StandardCharsets.UTF_8);
+        if (reply.length < 1 + error.length || reply[0] != TEXT) {
+            return false;
+        }
+        return Arrays.equals(reply, 1, 1 + error.length, error, 0, error.length);
+    }
+
+    // DISCONNECT as an op or as text, the connection ends after its reply
+    public static boolean isDisconnect(byte[] frame) {
+        if (frame.length == 0) {
+            return false;
+        }
+        if (frame[0] == DISCONNECT) {
+            return frame.length == 1;
+        }
+        return "DISCONNECT".equals(textOf(frame));
+    }
+
+    public static void notesHeader(Out out, int w, int h, int nw, int nh, boolean configured, long version, int count) {
+        out.op(NOTES).varint(w).varint(h).varint(nw).varint(nh).varint(configured ? 1 : 0).varint(version).varint(count);
+    }
+
+    // ---- client side ----
+
+    // the forms CommandBuilder produces; anything else goes as TEXT
+    private static final Pattern POST_LINE = Pattern.compile("POST (\\d{1,9}) (\\d{1,9}) (\\S+) (.*\\S.*)", Pattern.DOTALL);
+    private static final Pattern PIN_LINE = Pattern.compile("(PIN|UNPIN) (\\d{1,9}) (\\d{1,9})");
+    private static final Pattern GET_LINE = Pattern.compile(
+            "GET( colour=(\\S+))?( contains= (\\d{1,9}) (\\d{1,9}))?( refersTo=(\\S+))?( CURSOR (\\S+))?( LIMIT (\\d{1,9}))?");
+    private static final Pattern SINCE_LINE = Pattern.compile("GET SINCE (\\d{1,18})");
+    private static final Pattern RESIZE_LINE = Pattern.compile("RESIZE (\\d{1,9}) (\\d{1,9}) (\\d{1,9}) (\\d{1,9})");
+
+    // colours: the handshake's COLOURS line, in order
+    public static byte[] encodeCommand(String line, List<String> colours) {
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < colours.size(); i++) {
+            index.put(colours.get(i), i);
+        }
+        Out out = new Out();
+        Matcher m;
+        if ((m = POST_LINE.matcher(line)).matches()) {
+            out.op(POST).varint(Integer.parseInt(m.group(1))).varint(Integer.parseInt(m.group(2)));
+            out.colour(m.group(3).toLowerCase(), index).string(m.group(4));
+        } else if ((m = PIN_LINE.matcher(line)).matches()) {
+            out.op(m.group(1).equals("PIN") ? PIN : UNPIN);
+            out.varint(Integer.parseInt(m.group(2))).varint(Integer.parseInt(m.group(3)));
+        } else if (line.equals("GET PINS")) {
+            out.op(GET_PINS);
+        } else if ((m = SINCE_LINE.matcher(line)).matches()) {
+            out.op(GET_SINCE).varint(Long.parseLong(m.group(1)));
+        } else if ((m = GET_LINE.matcher(line)).matches()) {
+            int flags = (m.group(1) != null ? HAS_COLOUR : 0) | (m.group(3) != null ? HAS_CONTAINS : 0)
+                    | (m.group(6) != null ? HAS_REFERS_TO : 0) | (m.group(8) != null ? HAS_CURSOR : 0)
+                    | (m.group(10) != null ? HAS_LIMIT : 0);
+            out.op(GET).varint(flags);
+            if (m.group(1) != null) {
+                out.colour(m.group(2).toLowerCase(), index);
+            }
+            if (m.group(3) != null) {
+                out.varint(Integer.parseInt(m.group(4))).varint(Integer.parseInt(m.group(5)));
+            }
+            if (m.group(6) != null) {
+                out.string(m.group(7));
+            }
+            if (m.group(8) != null) {
+                out.string(m.group(9));
+            }
+            if (m.group(10) != null) {
+                out.varint(Integer.parseInt(m.group(11)));
+            }
+        } else if ((m = RESIZE_LINE.matcher(line)).matches()) {
+            out.op(RESIZE);
+            for (int i = 1; i <= 4; i++) {
+                out.varint(Integer.parseInt(m.group(i)));
+            }
+        } else if (line.equals("SHAKE")) {
+            out.op(SHAKE);
+        } else if (line.equals("CLEAR")) {
+            out.op(CLEAR);
+        } else if (line.equals("DISCONNECT")) {
+            out.op(DISCONNECT);
+        } else {
+            return text(line);
+        }
+        return out.toByteArray();
+    }
+
+    // a reply frame as the text lines the text protocol sends for it
+    public static void decodeReply(byte[] frame, List<String> colours, List<String> lines) {
+        In in = new In(frame);
+        int op = in.op();
+        if (op == DEFLATED) {
+            decodeReply(inflate(in.restBytes()), colours, lines);
+            return;
+        }
+        if (op == TEXT) {
+            lines.addAll(Arrays.asList(in.rest().split("\n", -1)));
+            return;
+        }
+        if (op != NOTES) {
+            throw new IllegalArgumentException("Unexpected reply op " + op);
+        }
+        int w = in.intVarint();
+        int h = in.intVarint();
+        int nw = in.intVarint();
+        int nh = in.intVarint();
+        boolean configured = in.varint() != 0;
+        long version = in.varint();
+        int count = in.intVarint();
+        lines.add("SUCCESS GET " + w + " " + h + " " + nw + " " + nh + " " + configured + " " + version);
+        for (int i = 0; i < count; i++) {
+            int x = in.intVarint();
+            int y = in.intVarint();
+            String colour = in.colour(colours);
+            lines.add("NOTE " + x + " " + y + " " + colour + " " + in.string());
+            int pins = in.intVarint();
+            for (int p = 0; p < pins; p++) {
+                lines.add("PIN " + (x + in.zigzag()) + " " + (y + in.zigzag()));
+            }
+        }
+        if (in.hasRemaining()) {
+            lines.add("SUCCESS GET_MORE " + in.string());
+        } else {
+            lines.add(count == 0 ? "SUCCESS GET_COMPLETE - No notes found" : "SUCCESS GET_COMPLETE");
+        }
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/*Write-ahead log that lets the board survive a restart (java BBoard --data=<dir> ...)
+Responsible for the following:
+    - Appending one small binary record per successful mutation, in version order
+    - Group commit: whoever syncs first writes and forces everything appended so far,
+      so concurrent mutations share one FileChannel.force instead of paying for one each
+    - Compaction: once a segment gets big, starting a new one and writing a snapshot
+      of the board in the background, then deleting what the snapshot replaces
+    - Recovery at startup: newest snapshot, then every segment after it, up to the
+      last complete record
+    - Refusing to go on after a write or force fails, since recovery would stop at a
+      record left half written and drop everything logged after it
+Records are replayed through Board's own mutators, so the board comes back with the
+same notes, pins and version numbers it had before the restart.
+Files in the data directory:
+    snapshot-<version>.bin   the whole board at that version (see SnapshotFile)
+    wal-<version>.log        records for version+1, version+2, ...
+A record is: payload length, CRC32C of the payload, payload (op byte + fields).
+Every board has a log of its own: the default board's is the data directory itself,
+any other board's the subdirectory named after it.
+*/
+
+public class WriteAheadLog {
+
+    static final byte POST = 1;
+    static final byte PIN = 2;
+    static final byte UNPIN = 3;
+    static final byte SHAKE = 4;
+    static final byte CLEAR = 5;
+    static final byte RESIZE = 6;
+
+    private static final int HEADER_BYTES = 8;
+
+    // once the current segment is this big the next mutation starts a compaction
+    private static final long COMPACT_BYTES = 64L * 1024 * 1024;
+
+    private final Path dir;
+
+    // records appended by mutators (under the board's write lock) but not written yet,
+    // swapped with 'writing' by whoever syncs so appends never wait for the disk
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private long appended = 0; // records appended since startup
+    private long segmentBytes = 0; // size of the current segment, pending records included
+    private final CRC32C crc = new CRC32C();
+    // records sealed by compact() for the segment they belong in, oldest first;
+    // the next flush writes them there and only then starts the new segment
+    private final ArrayDeque<Rollover> rollovers = new ArrayDeque<>();
+
+    // held while writing + forcing, guards the fields below
+    private final Object flushLock = new Object();
+    private FileChannel segment;
+    private long durable = 0; // records known to be on disk
+    // the first write, force or segment switch that failed; the log takes nothing after it.
+    // Read without flushLock by Board before each mutation
+    private volatile IOException failure;
+
+    // snapshots are written off the request path, one at a time, in order
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WriteAheadLog(Path dir) {
+        this.dir = dir;
+    }
+
+    public synchronized void appendPost(int x, int y, String colour, String message) {
+        byte[] c = colour.getBytes(StandardCharsets.UTF_8);
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        int start = begin(1 + 8 + 4 + c.length + 4 + m.length);
+        pending.put(POST).putInt(x).putInt(y);
+        pending.putInt(c.length).put(c);
+        pending.putInt(m.length).put(m);
+        end(start);
+    }
+
+    public synchronized void appendPin(int x, int y) {
+        int start = begin(1 + 8);
+        pending.put(PIN).putInt(x).putInt(y);
+        end(start);
+    }
+
+    public synchronized void appendUnpin(int x, int y) {
+        int start = begin(1 + 8);
+        pending.put(UNPIN).putInt(x).putInt(y);
+        end(start);
+    }
+
+    public synchronized void appendShake() {
+        int start = begin(1);
+        pending.put(SHAKE);
+        end(start);
+    }
+
+    public synchronized void appendClear() {
+        int start = begin(1);
+        pending.put(CLEAR);
+        end(start);
+    }
+
+    public synchronized void appendResize(int w, int h, int nw, int nh) {
+        int start = begin(1 + 16);
+        pending.put(RESIZE).putInt(w).putInt(h).putInt(nw).putInt(nh);
+        end(start);
+    }
+
+    // makes every record appended so far durable. Called after the board lock is
+    // released: threads that appended while someone else was forcing find their
+    // records already covered by the next single write + force
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        synchronized (flushLock) {
+            if (durable >= target && !rolloverPending()) {
+                return; // another thread's force already took our record with it
+            }
+            flushLocked();
+        }
+    }
+
+    // true once the log can't be written any more, see flushLocked
+    public boolean failed() {
+        return failure != null;
+    }
+
+    public synchronized boolean needsCompaction() {
+        return segmentBytes >= COMPACT_BYTES;
+    }
+
+    // anything in the current segment, i.e. a restart would have records to replay
+    public synchronized boolean hasUnsnapshottedRecords() {
+        return segmentBytes > 0;
+    }
+
+    // waits for snapshots already handed to the compactor, no new ones start afterwards
+    public void finishCompaction() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // called under the board's write lock with a snapshot of the current version.
+    // Only seals the records appended so far: the next sync, after the lock is released,
+    // writes them to the current segment, starts a new one and hands the snapshot to
+    // the compactor, so mutations never wait on that write + force + file switch
+    public synchronized void compact(BoardSnapshot snapshot) {
+        rollovers.add(new Rollover(pending, appended, snapshot));
+        pending = ByteBuffer.allocate(64 * 1024);
+        segmentBytes = 0;
+    }
+
+    private synchronized boolean rolloverPending() {
+        return !rollovers.isEmpty();
+    }
+
+    // rebuilds the board from the data directory and opens the log for appending.
+    // A new directory starts with a snapshot of the board as configured on the command line
+    public void recover(Board board) throws IOException {
+        Files.createDirectories(dir);
+
+        long base = newest("snapshot-", ".bin");
+        if (base < 0) {
+            base = 0;
+            SnapshotFile.write(board.snapshot(), snapshotPath(base));
+        } else {
+            SnapshotFile.load(snapshotPath(base), board);
+        }
+        deleteBefore(base); // leftovers of a compaction that didn't get to clean up
+
+        List<Long> segments = list("wal-", ".log");
+        // lookups scan until the restored grid is built, far too slow for a long replay
+        for (long v : segments) {
+            if (Files.size(segmentPath(v)) > 0) {
+                try {
+                    board.awaitGrid();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for the board index");
+                }
+                break;
+            }
+        }
+
+        Path last = null;
+        long lastLength = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segmentPath(segments.get(i));
+            long valid = replay(path, board);
+            last = path;
+            lastLength = valid;
+            if (valid < Files.size(path)) {
+                // torn write from a crash, everything after it was never acknowledged
+                System.err.println("WAL: dropping incomplete record at " + path.getFileName() + ":" + valid);
+                for (int j = i + 1; j < segments.size(); j++) {
+                    Files.delete(segmentPath(segments.get(j)));
+                }
+                break;
+            }
+        }
+
+        synchronized (flushLock) {
+            if (last == null) {
+                segment = openSegment(base);
+                lastLength = 0;
+            } else {
+                segment = FileChannel.open(last, StandardOpenOption.WRITE);
+                segment.truncate(lastLength);
+                segment.position(lastLength);
+            }
+            synchronized (this) {
+                segmentBytes = lastLength;
+            }
+        }
+    }
+
+    // applies every complete record of a segment, returns how many bytes were valid.
+    // The segment is read onto the heap (it is rolled over at COMPACT_BYTES) rather than
+    // mapped: recover() truncates it and compaction deletes it, which a live mapping
+    // would block on some platforms
+    private long replay(Path path, Board board) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("WAL segment too large to replay: " + path);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+            while (buf.hasRemaining()) {
+                if (ch.read(buf) < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            CRC32C check = new CRC32C();
+            while (buf.remaining() >= HEADER_BYTES) {
+                int start = buf.position();
+                int length = buf.getInt();
+                int sum = buf.getInt();
+                if (length <= 0 || length > buf.remaining()) {
+                    return start;
+                }
+                ByteBuffer payload = buf.slice(buf.position(), length);
+                check.reset();
+                check.update(payload.duplicate());
+                if ((int) check.getValue() != sum) {
+                    return start;
+                }
+                apply(payload, board);
+                buf.position(buf.position() + length);
+            }
+            return buf.position();
+        }
+    }
+
+    private static void apply(ByteBuffer r, Board board) {
+        byte op = r.get();
+        switch (op) {
+            case POST: {
+                int x = r.getInt();
+                int y = r.getInt();
+                String colour = readString(r);
+                String message = readString(r);
+                board.colours.register(colour); // may have been dropped from the command line since
+                board.post(x, y, colour, message);
+                break;
+            }
+            case PIN:
+                board.pin(r.getInt(), r.getInt());
+                break;
+            case UNPIN:
+                board.unpin(r.getInt(), r.getInt());
+                break;
+            case SHAKE:
+                board.shake();
+                break;
+            case CLEAR:
+                board.clear();
+                break;
+            case RESIZE:
+                board.resize(r.getInt(), r.getInt(), r.getInt(), r.getInt());
+                break;
+            default:
+                throw new IllegalStateException("Unknown WAL record " + op);
+        }
+    }
+
+    private static String readString(ByteBuffer r) {
+        byte[] bytes = new byte[r.getInt()];
+        r.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // reserves room for one record, header is filled in by end()
+    private int begin(int payloadLength) {
+        int needed = HEADER_BYTES + payloadLength;
+        if (pending.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        int start = pending.position();
+        pending.position(start + HEADER_BYTES);
+        return start;
+    }
+
+    private void end(int start) {
+        int length = pending.position() - start - HEADER_BYTES;
+        crc.reset();
+        crc.update(pending.slice(start + HEADER_BYTES, length));
+        pending.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        appended++;
+        segmentBytes += HEADER_BYTES + length;
+    }
+
+    // holding flushLock: write out everything appended so far and force it
+    private void flushLocked() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed earlier", failure);
+        }
+        long upTo;
+        Rollover[] switching;
+        synchronized (this) {
+            // taken together: sealed records belong before anything still pending
+            switching = rollovers.toArray(new Rollover[0]);
+            rollovers.clear();
+            ByteBuffer full = pending;
+            pending = writing;
+            writing = full;
+            upTo = appended;
+        }
+        writing.flip();
+        try {
+            for (Rollover r : switching) {
+                r.records.flip();
+                writeAndForce(r.records);
+                durable = r.upTo;
+                segment.close();
+                segment = openSegment(r.snapshot.version);
+                writeSnapshotLater(r.snapshot);
+            }
+            writeAndForce(writing);
+        } catch (IOException e) {
+            // some of these records may be in the file, and a record after a torn one is
+            // never replayed: stop here rather than acknowledge changes a restart would lose
+            failure = e;
+            throw e;
+        } finally {
+            writing.clear(); // becomes 'pending' on the next swap
+        }
+        durable = upTo;
+    }
+
+    private void writeAndForce(ByteBuffer records) throws IOException {
+        while (records.hasRemaining()) {
+            segment.write(records);
+        }
+        segment.force(false); // data only, the file length is recovered from the records
+    }
+
+    // the new segment is open, so the snapshot's version is the last one the old ones hold
+    private void writeSnapshotLater(BoardSnapshot snapshot) {
+        compactor.execute(() -> {
+            try {
+                SnapshotFile.write(snapshot, snapshotPath(snapshot.version));
+                deleteBefore(snapshot.version);
+            } catch (IOException e) {
+                // old snapshot and segments are still there, nothing is lost
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private FileChannel openSegment(long version) throws IOException {
+        return FileChannel.open(segmentPath(version), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // snapshots and segments older than 'version' are covered by snapshot-<version>.bin.
+    // A file that can't go yet (Windows refuses while the mapping SnapshotFile.load left
+    // behind hasn't been collected) is left for the next compaction
+    private void deleteBefore(long version) throws IOException {
+        for (long v : list("snapshot-", ".bin")) {
+            if (v < version) {
+                deleteIfPossible(snapshotPath(v));
+            }
+        }
+        for (long v : list("wal-", ".log")) {
+            if (v < version) {
+                deleteIfPossible(segmentPath(v));
+            }
+        }
+    }
+
+    private static void deleteIfPossible(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("WAL: could not delete " + path.getFileName() + " yet: " + e);
+        }
+    }
+
+    private long newest(String prefix, String suffix) throws IOException {
+        List<Long> versions = list(prefix, suffix);
+        return versions.isEmpty() ? -1 : versions.get(versions.size() - 1);
+    }
+
+    // versions of the files named prefix<version>suffix, oldest first
+    private List<Long> list(String prefix, String suffix) throws IOException {
+        List<Long> versions = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    versions.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    private Path snapshotPath(long version) {
+        return dir.resolve(String.format("snapshot-%020d.bin", version));
+    }
+
+    private Path segmentPath(long version) {
+        return dir.resolve(String.format("wal-%020d.log", version));
+    }
+
+    // records up to 'upTo', the last of them at snapshot.version
+    private static final class Rollover {
+        final ByteBuffer records;
+        final long upTo;
+        final BoardSnapshot snapshot;
+
+        Rollover(ByteBuffer records, long upTo, BoardSnapshot snapshot) {
+            this.records = records;
+            this.upTo = upTo;
+            this.snapshot = snapshot;
+        }
+    }
+}